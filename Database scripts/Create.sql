@@ -13,11 +13,26 @@ create table threads
 
 create table messages
 (
+  mid    bigint       not null
+    primary key,
   tid    int          not null,
   uid    int          not null,
   m_cont varchar(200) null,
   m_time datetime     not null,
-  primary key (tid, uid, m_time),
   foreign key (tid) references threads (tid),
   foreign key (uid) references users (uid)
 );
+
+create index messages_by_thread on messages (tid, mid);
+create unique index threads_by_name on threads (tname);
+
+create table room_members
+(
+  tid int not null,
+  uid int not null,
+  primary key (tid, uid),
+  foreign key (tid) references threads (tid),
+  foreign key (uid) references users (uid)
+);
+
+create index members_by_user on room_members (uid);
@@ -1,22 +1,37 @@
 create table users
 (
-    uid      integer autoincrement primary key,
+    uid      integer primary key autoincrement,
     password text not null
 );
 
 create table rooms
 (
-    tid   integer autoincrement primary key,
+    tid   integer primary key autoincrement,
     tname text not null
 );
 
 create table messages
 (
+    mid    integer not null
+        primary key,
     tid    integer not null,
     uid    integer not null,
     m_cont text    null,
     m_time text    not null,
-    primary key (tid, uid, m_time),
     foreign key (tid) references rooms (tid),
     foreign key (uid) references users (uid)
 );
+
+create index messages_by_thread on messages (tid, mid);
+create unique index rooms_by_name on rooms (tname);
+
+create table room_members
+(
+    tid integer not null,
+    uid integer not null,
+    primary key (tid, uid),
+    foreign key (tid) references rooms (tid),
+    foreign key (uid) references users (uid)
+);
+
+create index members_by_user on room_members (uid);
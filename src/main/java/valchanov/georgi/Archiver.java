@@ -0,0 +1,102 @@
+package valchanov.georgi;
+
+import java.io.IOException;
+
+/**
+ * Moves the old messages out of the messages table into a {@link MessageArchive} in the background.<br>
+ * Every interval, the messages of the months that ended before the maximum age are archived, so a month of a
+ * thread is archived as a whole and the table only keeps the recent months. The history of a thread falls through
+ * to the archive once the table has no older messages
+ */
+public class Archiver extends ShutDownThread {
+
+    /**
+     * Default age in milliseconds after which the messages are archived
+     */
+    public static final long DEFAULT_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Default time in milliseconds between two runs
+     */
+    public static final long DEFAULT_INTERVAL = 60 * 60 * 1000;
+
+    private final SqlMessageStore store;
+    private final MessageArchive archive;
+
+    /**
+     * Age in milliseconds after which the messages are archived
+     */
+    private final long age;
+
+    /**
+     * Time in milliseconds between two runs
+     */
+    private final long interval;
+
+    /**
+     * Number of archived messages and of runs
+     */
+    private long archived;
+    private long runs;
+
+    /**
+     * Creates a new archiver
+     *
+     * @param store          whose old messages are archived
+     * @param archive        that the messages are moved to
+     * @param ageMillis      age in milliseconds after which the messages are archived
+     * @param intervalMillis time in milliseconds between two runs
+     * @throws IllegalArgumentException if the age is negative or the interval is not positive
+     */
+    public Archiver(SqlMessageStore store, MessageArchive archive, long ageMillis, long intervalMillis) throws IllegalArgumentException {
+        if (ageMillis < 0 || intervalMillis < 1)
+            throw new IllegalArgumentException("The age can't be negative and the interval has to be positive");
+
+        this.store = store;
+        this.archive = archive;
+        this.age = ageMillis;
+        this.interval = intervalMillis;
+        this.setName("Message archiver");
+    }
+
+    /**
+     * Returns the archive that the messages are moved to
+     *
+     * @return the archive
+     */
+    public MessageArchive archive() {
+        return archive;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning()) {
+                archiveOnce();
+                Thread.sleep(interval);
+            }
+        } catch (InterruptedException e) {
+            //shut down
+        } finally {
+            System.out.println("Messages archived: " + archived + " in " + runs + " runs");
+        }
+    }
+
+    /**
+     * Archives the messages of the months that ended before the maximum age
+     */
+    private void archiveOnce() {
+        //only whole months are archived, so each month of a thread is a single segment
+        long before = MessageArchive.firstOf(MessageArchive.monthOf(MessageIdGenerator.firstAt(System.currentTimeMillis() - age)));
+        try {
+            int moved = store.archive(before, archive);
+            archived += moved;
+            runs++;
+            if (moved > 0)
+                System.out.println("Archived " + moved + " messages received before " + MessageArchive.monthOf(before));
+        } catch (IOException e) {
+            //the messages stay in the table and are archived on the next run
+            if (logger() != null) logger().log(e);
+        }
+    }
+}
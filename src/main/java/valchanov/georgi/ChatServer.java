@@ -5,14 +5,20 @@ import java.net.InetSocketAddress;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A chat server that provides the functionality of reading from and writing to multiple clients
  */
 public class ChatServer extends ShutDownThread {
 
+    /**
+     * Milliseconds that the server waits on shut down for the workers to finish what they are handling
+     */
+    private static final long HANDLERS_SHUTDOWN_TIMEOUT = 10_000;
+
     /**
      * Address and port of the server
      */
@@ -23,10 +29,45 @@ public class ChatServer extends ShutDownThread {
     private ServerSocketChannel serverSocket;
 
     /**
-     * Selector for receiving evens for being ready
-     * for reading or writing
+     * Selectors for receiving evens for being ready
+     * for reading or writing. Each one watches over its own share of the connections
+     */
+    private ServerSelectionThread[] selectionThreads;
+
+    /**
+     * Hands each new connection to one of the selection threads
+     */
+    private SelectionBalancer balancer;
+
+    /**
+     * Workers that the selection threads hand the selected connections to; shared by all of them
+     */
+    private ExecutorService handlers;
+
+    /**
+     * Number of selection threads
+     */
+    private int selectorsNum;
+
+    /**
+     * How new connections are spread across the selection threads
      */
-    private ServerSelectionThread selectionThread;
+    private SelectionBalancer.Policy balancing;
+
+    /**
+     * When true the first selection thread accepts the new connections instead of the server's own thread
+     */
+    private boolean acceptOnSelector;
+
+    /**
+     * What kind of threads the readers and writers are executed on
+     */
+    private ExecutionMode executionMode;
+
+    /**
+     * Time in milliseconds without any traffic from a client after which its connection is closed; 0 for never
+     */
+    private long idleTimeout;
 
     /**
      * Number of simultaneous worker threads
@@ -52,6 +93,11 @@ public class ChatServer extends ShutDownThread {
      */
     private WriterFactory writers;
 
+    /**
+     * Moves the old messages out of the messages table; null if they're never moved
+     */
+    private Archiver archiver;
+
     /**
      * Creates a new NIO Chat server
      *
@@ -65,11 +111,191 @@ public class ChatServer extends ShutDownThread {
         readers = read;
         writers = write;
 
-        //read it from an article
-        workersNum = 2 * (Runtime.getRuntime().availableProcessors() - 1);
+        //read it from an article (at least two so that a single CPU machine still has workers)
+        workersNum = Math.max(2, 2 * (Runtime.getRuntime().availableProcessors() - 1));
+        executionMode = ExecutionMode.POOLED;
+        selectorsNum = 1;
+        balancing = SelectionBalancer.Policy.ROUND_ROBIN;
         super.setName("Chat Server");
     }
 
+    /**
+     * Specifies how many selection threads are going to watch over the connections.
+     * Has to be called before the server is started
+     *
+     * @param number  of selection threads
+     * @param balancing how new connections are spread across them
+     * @throws IllegalArgumentException if the number is not positive
+     */
+    public void setSelectionThreads(int number, SelectionBalancer.Policy balancing) throws IllegalArgumentException {
+        if (number < 1)
+            throw new IllegalArgumentException("There has to be at least one selection thread");
+
+        this.selectorsNum = number;
+        this.balancing = balancing;
+    }
+
+    /**
+     * Specifies whether new connections are accepted by the first selection thread in batches on every select
+     * or one by one by the blocking loop of the server's own thread.
+     * Has to be called before the server is started
+     *
+     * @param onSelector true for accepting on the selection thread
+     */
+    public void setAcceptOnSelector(boolean onSelector) {
+        this.acceptOnSelector = onSelector;
+    }
+
+    /**
+     * Specifies whether cheap messages are read and written on the selection threads.
+     * Only messages that need the database are handed off to the workers then.
+     * Has to be called before the server is started
+     *
+     * @param inline true for handling cheap messages on the selection threads
+     */
+    public void setInlineHandling(boolean inline) {
+        readers.setInline(inline);
+        writers.setInline(inline);
+    }
+
+    /**
+     * Specifies how many messages could wait to be sent to a client and what is done once there's no more room.
+     * Has to be called before the server is started
+     *
+     * @param capacity maximum number of messages waiting for a client
+     * @param overflow what is done when a message doesn't fit
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public void setMailBoxLimit(int capacity, MailOffice.Overflow overflow) throws IllegalArgumentException {
+        activeUserToMessageQueue.setMailBoxLimit(capacity, overflow);
+    }
+
+    /**
+     * Specifies how many messages and bytes could wait to be sent to a client and what is done once there's
+     * no more room.
+     * Has to be called before the server is started
+     *
+     * @param capacity     maximum number of messages waiting for a client
+     * @param byteCapacity maximum number of bytes of the messages waiting for a client
+     * @param overflow     what is done when a message doesn't fit
+     * @throws IllegalArgumentException if either of the capacities is not positive
+     */
+    public void setMailBoxLimit(int capacity, long byteCapacity, MailOffice.Overflow overflow) throws IllegalArgumentException {
+        activeUserToMessageQueue.setMailBoxLimit(capacity, byteCapacity, overflow);
+    }
+
+    /**
+     * Specifies how long a client could stay quiet before its connection is closed.
+     * A quiet client is sent a PING after half of that time, so a client that's still there
+     * keeps its connection by replying with a PONG.
+     * Has to be called before the server is started
+     *
+     * @param millis time without any traffic from a client after which it's disconnected; 0 for never
+     * @throws IllegalArgumentException if the time is negative
+     */
+    public void setIdleTimeout(long millis) throws IllegalArgumentException {
+        if (millis < 0)
+            throw new IllegalArgumentException("The idle timeout can't be negative");
+
+        this.idleTimeout = millis;
+    }
+
+    /**
+     * Specifies how the relayed messages are saved: when they are sent on to their receivers, how many
+     * are saved together at most and for how long the saving waits for more messages.
+     * Has to be called before the server is started
+     *
+     * @param durability  when a relayed message is sent on to its receivers
+     * @param batchSize   maximum number of messages saved in a single transaction
+     * @param flushMillis time in milliseconds that a batch waits to be filled before it's saved
+     * @throws IllegalArgumentException if the batch size is not positive or the time is negative
+     */
+    public void setPersistence(MessageSaver.Durability durability, int batchSize, long flushMillis) throws IllegalArgumentException {
+        readers.saver().setBatching(batchSize, flushMillis);
+        readers.setDurability(durability);
+    }
+
+    /**
+     * Specifies how the credentials that were checked against the database are remembered.
+     * Has to be called before the server is started
+     *
+     * @param size                    number of users whose credentials are kept; 0 for keeping none
+     * @param timeToLiveMillis        time in milliseconds that a verified password is kept
+     * @param failureTimeToLiveMillis time in milliseconds that a failed attempt is kept
+     * @throws IllegalArgumentException if the size or a time is negative
+     */
+    public void setCredentialCache(int size, long timeToLiveMillis, long failureTimeToLiveMillis) throws IllegalArgumentException {
+        readers.setCredentialCache(new CredentialCache(size, timeToLiveMillis, failureTimeToLiveMillis));
+    }
+
+    /**
+     * Specifies how many of the latest messages of the active chat threads are kept in memory for sending
+     * their recent history.
+     * Has to be called before the server is started
+     *
+     * @param perRoom    number of messages kept for a thread; 0 for keeping none
+     * @param rooms      number of threads that have their messages kept
+     * @param idleMillis time in milliseconds after which a quiet thread loses its messages
+     * @throws IllegalArgumentException if a number is negative or no thread could be kept
+     */
+    public void setRecentMessages(int perRoom, int rooms, long idleMillis) throws IllegalArgumentException {
+        readers.setRecentMessages(new RecentMessages(perRoom, rooms, idleMillis));
+    }
+
+    /**
+     * Makes the server move the old messages out of the messages table into compressed segments in a directory,
+     * so the table only keeps the recent months. The history of a thread falls through to the archive.
+     * Has to be called before the server is started
+     *
+     * @param directory      of the archive
+     * @param ageMillis      age in milliseconds after which the messages are archived
+     * @param intervalMillis time in milliseconds between two runs of the archiver
+     * @throws IOException              if the directory could not be created
+     * @throws IllegalArgumentException if the messages are kept in a log instead of the messages table,
+     *                                  the age is negative or the interval is not positive
+     */
+    public void setArchive(Path directory, long ageMillis, long intervalMillis) throws IOException, IllegalArgumentException {
+        if (!(readers.store() instanceof SqlMessageStore))
+            throw new IllegalArgumentException("Only the messages table is archived");
+
+        archiver = new Archiver((SqlMessageStore) readers.store(), new MessageArchive(directory), ageMillis, intervalMillis);
+        readers.setArchive(archiver.archive());
+    }
+
+    /**
+     * Specifies the id of this server, which is part of the id of every message it receives, so that servers
+     * sharing a store never give two messages the same id.
+     * Has to be called before the server is started
+     *
+     * @param nodeID id of the server, between 0 and {@link MessageIdGenerator#MAX_NODE}
+     * @throws IllegalArgumentException if the id is out of range
+     */
+    public void setNodeID(int nodeID) throws IllegalArgumentException {
+        readers.setMessageIdGenerator(new MessageIdGenerator(nodeID));
+    }
+
+    /**
+     * Specifies how many ids of chat threads are remembered by their names, so that joining a known thread
+     * doesn't query the database.
+     * Has to be called before the server is started
+     *
+     * @param size number of names that are remembered; 0 for remembering none
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public void setRoomDirectory(int size) throws IllegalArgumentException {
+        readers.setRoomDirectory(new RoomDirectory(size));
+    }
+
+    /**
+     * Specifies what kind of threads the readers and writers are executed on.
+     * Has to be called before the server is started
+     *
+     * @param mode of execution of the handlers
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        this.executionMode = mode;
+    }
+
     public void run() {
 
         //try-catch for any kind of exception; it logs that exception
@@ -83,21 +309,71 @@ public class ChatServer extends ShutDownThread {
                 initWriterFactory();
                 initSelector();
 
+                if (acceptOnSelector) {
+                    //the first selection thread accepts the connections so just wait for it
+                    try {
+                        selectionThreads[0].join();
+                    } catch (InterruptedException e) {
+                        //the server is being shut down
+                    }
+                }
+
                 SocketChannel client;
-                while (isRunning()) {
+                while (isRunning() && !acceptOnSelector) {
                     //accept a new client connection and register it to the selector
                     client = serverSocket.accept();
                     System.out.println("New connection was established");
-                    selectionThread.registerSocket(client);
+                    balancer.registerSocket(client);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
                 throw e;
             } finally {
-                //tear down the selection thread
-                selectionThread.shutDown();
-                selectionThread.join();
+                //tear down the selection threads
+                //(all of them are signaled first since they share the workers)
+                if (selectionThreads != null) {
+                    for (ServerSelectionThread selectionThread : selectionThreads) {
+                        if (selectionThread != null) selectionThread.shutDown();
+                    }
+                    for (ServerSelectionThread selectionThread : selectionThreads) {
+                        if (selectionThread != null) selectionThread.join();
+                    }
+                }
+                //the workers are shut down once no selection thread hands them anything anymore,
+                //and the messages they are still relaying reach the saver before it's shut down
+                if (handlers != null) {
+                    handlers.shutdown();
+                    handlers.awaitTermination(HANDLERS_SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+                //save what's left once nothing is being read anymore
+                if (readers.saver().isAlive()) {
+                    readers.saver().shutDown();
+                    readers.saver().join();
+                }
+                if (archiver != null && archiver.isAlive()) {
+                    archiver.shutDown();
+                    archiver.join();
+                }
+                readers.store().close();
+                CredentialCache credentials = readers.credentialCache();
+                System.out.println("Credentials checked from memory: " + credentials.hits()
+                        + ", against the database: " + credentials.misses());
+                RecentMessages recent = readers.recentMessages();
+                recent.clear();
+                System.out.println("History pages sent from memory: " + recent.hits()
+                        + ", read from the store: " + recent.misses() + ", quiet threads evicted: " + recent.evicted());
+                RoomDirectory rooms = readers.roomDirectory();
+                System.out.println("Chat threads found in memory: " + rooms.hits() + ", in the database: " + rooms.misses()
+                        + ", by a lookup already running: " + rooms.shared());
+                printPool("Database connections", readers.readPool());
+                if (readers.writePool() != readers.readPool())
+                    printPool("Writing database connections", readers.writePool());
                 serverSocket.close();
+
+                System.out.println("Messages delivered: " + activeUserToMessageQueue.delivered()
+                        + ", dropped oldest: " + activeUserToMessageQueue.droppedOldest()
+                        + ", dropped newest: " + activeUserToMessageQueue.droppedNewest()
+                        + ", slow clients disconnected: " + activeUserToMessageQueue.disconnected());
             }
         } catch (Exception e) {
             this.logger().log(e);
@@ -105,21 +381,39 @@ public class ChatServer extends ShutDownThread {
     }
 
     /**
-     * Initializes the thread that is going to be doing the selection
+     * Initializes the threads that are going to be doing the selection.
+     * All of them share the same pool of workers.
+     * If connections are accepted on a selector, the server socket is registered with the first thread
      *
-     * @throws IOException if the selector cannot be opened
+     * @throws IOException if a selector cannot be opened
      */
     private void initSelector() throws IOException {
-        //init executor service and selector thread
-        Selector selector = Selector.open();
-        ExecutorService messageHandlers = Executors.newFixedThreadPool(workersNum);
-        selectionThread = new ServerSelectionThread(selector, messageHandlers);
+        //init executor service and selector threads
+        handlers = executionMode.newExecutor(workersNum);
+        selectionThreads = new ServerSelectionThread[selectorsNum];
 
-        // provide on read and on write commands for the selector
-        selectionThread.onReading(readers::readFrom);
-        selectionThread.onWriting(writers::writeTo);
+        for (int i = 0; i < selectorsNum; i++) {
+            Selector selector = Selector.open();
+            ServerSelectionThread selectionThread = new ServerSelectionThread(selector, handlers);
+            selectionThread.setName("Selector thread " + i);
+            selectionThread.setLogger(logger());
 
-        selectionThread.start();
+            // provide on read and on write commands for the selector
+            selectionThread.onReading(readers::readFrom);
+            selectionThread.onWriting(writers::writeTo);
+            selectionThread.onRegistering(readers::newSession);
+            if (idleTimeout > 0)
+                selectionThread.reapIdle(idleTimeout, readers::ping, readers::expire);
+
+            selectionThreads[i] = selectionThread;
+        }
+
+        balancer = new SelectionBalancer(selectionThreads, balancing);
+        if (acceptOnSelector)
+            selectionThreads[0].acceptOn(serverSocket, balancer);
+
+        for (ServerSelectionThread selectionThread : selectionThreads)
+            selectionThread.start();
     }
 
     /**
@@ -130,6 +424,27 @@ public class ChatServer extends ShutDownThread {
         readers.onReadError((k, m, e) ->
                 logger().log(e)
         );
+
+        MessageSaver saver = readers.saver();
+        saver.setLogger(logger());
+        saver.start();
+
+        if (archiver != null) {
+            archiver.setLogger(logger());
+            archiver.start();
+        }
+    }
+
+    /**
+     * Closes a pool of database connections and prints how it was used
+     *
+     * @param name of the pool
+     * @param pool to be closed
+     */
+    private static void printPool(String name, ConnectionPool pool) {
+        pool.close();
+        System.out.printf("%s acquired: %d, waited for: %d (average %.2f ms, longest %.2f ms), timed out: %d%n",
+                name, pool.acquired(), pool.waited(), pool.averageWaitMillis(), pool.maxWaitMillis(), pool.timeouts());
     }
 
     /**
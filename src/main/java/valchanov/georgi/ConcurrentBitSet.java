@@ -0,0 +1,130 @@
+package valchanov.georgi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A set of non negative ints kept as a bitmap that any number of threads could change at once.<br>
+ * The bitmap is split into pages that are only created once a bit in them is set, and every bit is set or cleared
+ * atomically in its word, so changes never copy the bitmap and reads never lock
+ */
+class ConcurrentBitSet {
+
+    /**
+     * Number of words of a page; a power of two
+     */
+    private static final int PAGE_WORDS = 1024;
+
+    /**
+     * Number of bits to shift a word index by to get its page
+     */
+    private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_WORDS);
+
+    /**
+     * The pages of the bitmap; a page is null if none of its bits were ever set
+     */
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[1];
+
+    /**
+     * Guards the creation of pages
+     */
+    private final Lock growLock = new ReentrantLock();
+
+    /**
+     * Adds a value to the set
+     *
+     * @param value to be added; not negative
+     * @throws IllegalArgumentException if the value is negative
+     */
+    void set(int value) throws IllegalArgumentException {
+        if (value < 0)
+            throw new IllegalArgumentException("Only non negative values could be in the set");
+
+        int word = value >>> 6;
+        long bit = 1L << value;
+        AtomicLongArray page = pageFor(word);
+
+        int at = word & (PAGE_WORDS - 1);
+        long old;
+        do {
+            old = page.get(at);
+        } while ((old & bit) == 0 && !page.compareAndSet(at, old, old | bit));
+    }
+
+    /**
+     * Removes a value from the set
+     *
+     * @param value to be removed
+     */
+    void clear(int value) {
+        if (value < 0) return;
+
+        int word = value >>> 6;
+        AtomicLongArray[] current = pages;
+        if ((word >>> PAGE_SHIFT) >= current.length || current[word >>> PAGE_SHIFT] == null) return;
+
+        AtomicLongArray page = current[word >>> PAGE_SHIFT];
+        long bit = 1L << value;
+        int at = word & (PAGE_WORDS - 1);
+        long old;
+        do {
+            old = page.get(at);
+        } while ((old & bit) != 0 && !page.compareAndSet(at, old, old & ~bit));
+    }
+
+    /**
+     * Returns true if a value is in the set
+     *
+     * @param value to be looked for
+     * @return true if the value is in the set
+     */
+    boolean get(int value) {
+        return value >= 0 && (word(value >>> 6) & (1L << value)) != 0;
+    }
+
+    /**
+     * Returns a word of the bitmap, i.e. the bits of the values from index * 64 to index * 64 + 63
+     *
+     * @param index of the word
+     * @return the word; 0 if none of its bits were ever set
+     */
+    long word(int index) {
+        AtomicLongArray[] current = pages;
+        int p = index >>> PAGE_SHIFT;
+        if (p >= current.length || current[p] == null) return 0;
+
+        return current[p].get(index & (PAGE_WORDS - 1));
+    }
+
+    /**
+     * Returns the page of a word, creating it if it doesn't exist
+     *
+     * @param word index of the word
+     * @return the page of the word
+     */
+    private AtomicLongArray pageFor(int word) {
+        int p = word >>> PAGE_SHIFT;
+        AtomicLongArray[] current = pages;
+        if (p < current.length && current[p] != null) return current[p];
+
+        growLock.lock();
+        try {
+            current = pages;
+            if (p >= current.length) {
+                AtomicLongArray[] grown = new AtomicLongArray[Math.max(p + 1, current.length * 2)];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            if (current[p] == null) {
+                //the pages that already exist are shared, so the bits set in them meanwhile aren't lost
+                current = current == pages ? current.clone() : current;
+                current[p] = new AtomicLongArray(PAGE_WORDS);
+            }
+            pages = current;
+            return current[p];
+        } finally {
+            growLock.unlock();
+        }
+    }
+}
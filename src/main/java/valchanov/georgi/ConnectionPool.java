@@ -0,0 +1,332 @@
+package valchanov.georgi;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size pool of connections to the database, so that queries from different readers run in parallel.<br>
+ * Connections are opened lazily, up to the size of the pool. Each one keeps the statements that were prepared on it,
+ * so a statement is only prepared once per connection. A connection is only used by one thread between
+ * {@link #acquire()} and {@link PooledConnection#close()}, so neither the connection nor its statements need locking.
+ * <p>
+ * The pool counts how often and for how long the threads had to wait for a connection
+ */
+public class ConnectionPool {
+
+    /**
+     * Default number of connections
+     */
+    public static final int DEFAULT_SIZE = 8;
+
+    /**
+     * Default time in milliseconds that a thread waits for a connection
+     */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 5000;
+
+    /**
+     * Url of the database
+     */
+    private final String url;
+
+    /**
+     * Credentials for the database; null if the database doesn't need any
+     */
+    private final String user;
+    private final String password;
+
+    /**
+     * Statements executed on every new connection, such as pragmas; empty if there are none
+     */
+    private String[] initStatements = new String[0];
+
+    /**
+     * One permit for each connection that could be handed out
+     */
+    private final Semaphore permits;
+    private final int size;
+
+    /**
+     * Connections that are open and not handed out
+     */
+    private final ConcurrentLinkedDeque<PooledConnection> idle;
+
+    /**
+     * Time in nanoseconds that a thread waits for a connection
+     */
+    private final long acquireTimeout;
+
+    /**
+     * Number of connections handed out, how many of them had to be waited for,
+     * the total and the longest wait in nanoseconds and the number of waits that timed out
+     */
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong waitTime = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Creates a new pool. No connection is opened until one is needed
+     *
+     * @param driver               class name of the JDBC driver
+     * @param url                  of the database
+     * @param user                 of the database; null if the database doesn't need credentials
+     * @param password             of the user
+     * @param size                 maximum number of connections
+     * @param acquireTimeoutMillis time in milliseconds that a thread waits for a connection
+     * @throws ClassNotFoundException   if the driver could not be loaded
+     * @throws IllegalArgumentException if the size is not positive or the timeout is negative
+     */
+    public ConnectionPool(String driver, String url, String user, String password, int size, long acquireTimeoutMillis)
+            throws ClassNotFoundException, IllegalArgumentException {
+        if (size < 1 || acquireTimeoutMillis < 0)
+            throw new IllegalArgumentException("A pool needs at least one connection and a non negative acquire timeout");
+
+        Class.forName(driver);
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.permits = new Semaphore(size, true);
+        this.size = size;
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.acquireTimeout = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+    }
+
+    /**
+     * Specifies statements that are executed on every connection right after it's opened,
+     * such as the pragmas of a SQLite database.
+     * Has to be called before any connection is taken from the pool
+     *
+     * @param statements to be executed on every new connection
+     */
+    public void setInitStatements(String... statements) {
+        this.initStatements = statements.clone();
+    }
+
+    /**
+     * Takes a connection from the pool, waiting for one if all of them are in use.
+     * The connection has to be given back by closing it, best with a try-with-resources
+     *
+     * @return a connection that only the calling thread uses until it's closed
+     * @throws SQLException if no connection became free in time or a new connection could not be opened
+     */
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire()) {
+                waited.incrementAndGet();
+                if (!permits.tryAcquire(acquireTimeout, TimeUnit.NANOSECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("Timed out waiting for a database connection");
+                }
+
+                long wait = System.nanoTime() - start;
+                waitTime.addAndGet(wait);
+                maxWait.accumulateAndGet(wait, Math::max);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        acquired.incrementAndGet();
+
+        //the most recently used connection is the most likely to still be alive
+        PooledConnection connection = idle.pollFirst();
+        if (connection != null) return connection;
+
+        try {
+            return new PooledConnection(openConnection());
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a connection to the database that doesn't belong to the pool,
+     * for a thread that keeps a connection to itself
+     *
+     * @return a new connection
+     * @throws SQLException if the connection could not be opened
+     */
+    public Connection openConnection() throws SQLException {
+        Connection connection = user == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, user, password);
+
+        if (initStatements.length > 0) {
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : initStatements) {
+                    statement.execute(sql);
+                }
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Closes the connections that aren't in use
+     */
+    public void close() {
+        PooledConnection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.closeConnection();
+        }
+    }
+
+    /**
+     * Returns the maximum number of connections, i.e. how many queries could run on the pool at the same time
+     *
+     * @return the size of the pool
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of connections handed out
+     *
+     * @return the number of connections handed out
+     */
+    public long acquired() {
+        return acquired.get();
+    }
+
+    /**
+     * Returns the number of times a thread had to wait for a connection
+     *
+     * @return the number of waits
+     */
+    public long waited() {
+        return waited.get();
+    }
+
+    /**
+     * Returns the average time a thread waited for a connection, counting only the waits that got one
+     *
+     * @return the average wait in milliseconds
+     */
+    public double averageWaitMillis() {
+        long waits = waited.get() - timeouts.get();
+        return waits == 0 ? 0 : waitTime.get() / (double) waits / 1_000_000;
+    }
+
+    /**
+     * Returns the longest time a thread waited for a connection
+     *
+     * @return the longest wait in milliseconds
+     */
+    public double maxWaitMillis() {
+        return maxWait.get() / 1_000_000.0;
+    }
+
+    /**
+     * Returns the number of times a thread gave up waiting for a connection
+     *
+     * @return the number of timeouts
+     */
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * A connection handed out by the pool, together with the statements prepared on it
+     */
+    public class PooledConnection implements AutoCloseable {
+
+        private final Connection connection;
+
+        /**
+         * Statements prepared on the connection by their SQL
+         */
+        private final Map<String, PreparedStatement> statements;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            this.statements = new HashMap<>();
+        }
+
+        /**
+         * Returns the underlying connection, e.g. for handling transactions.
+         * The connection must not be closed; it's given back by closing the pooled connection
+         *
+         * @return the underlying connection
+         */
+        public Connection connection() {
+            return connection;
+        }
+
+        /**
+         * Returns a statement prepared on the connection, preparing it the first time it's asked for
+         *
+         * @param sql of the statement
+         * @return the prepared statement
+         * @throws SQLException if the statement could not be prepared
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Returns a statement prepared on the connection that could return the generated keys,
+         * preparing it the first time it's asked for
+         *
+         * @param sql               of the statement
+         * @param autoGeneratedKeys whether the generated keys are returned
+         * @return the prepared statement
+         * @throws SQLException if the statement could not be prepared
+         */
+        public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+            //the same SQL could be prepared both ways
+            String cacheKey = autoGeneratedKeys + ":" + sql;
+            PreparedStatement statement = statements.get(cacheKey);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql, autoGeneratedKeys);
+                statements.put(cacheKey, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Gives the connection back to the pool. A connection that was closed meanwhile is dropped
+         */
+        @Override
+        public void close() {
+            try {
+                if (!connection.isClosed()) {
+                    idle.offerFirst(this);
+                }
+            } catch (SQLException e) {
+                closeConnection();
+            } finally {
+                permits.release();
+            }
+        }
+
+        /**
+         * Closes the connection together with its statements
+         */
+        private void closeConnection() {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                //nothing more could be done with it
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package valchanov.georgi;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the credentials that were recently checked against the database, so that clients reconnecting
+ * all at once don't query the database.<br>
+ * A verified password is kept as a salted SHA-256 hash for the time to live. A failed attempt is kept for a shorter
+ * time, so retrying the same wrong password doesn't reach the database. Only the exact wrong passwords are refused:
+ * a password that isn't known yet is always checked against the database, so nobody could lock a user out by
+ * failing on purpose. Once the cache is full, the expired entries and then the oldest ones are evicted
+ */
+public class CredentialCache {
+
+    /**
+     * What the cache knows about a pair of credentials
+     */
+    public enum Verdict {
+        /**
+         * The password was verified
+         */
+        VALID,
+        /**
+         * The password is known to be wrong
+         */
+        INVALID,
+        /**
+         * The credentials have to be checked against the database
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Default number of users whose credentials are kept
+     */
+    public static final int DEFAULT_SIZE = 1 << 16;
+
+    /**
+     * Default time in milliseconds that a verified password is kept
+     */
+    public static final long DEFAULT_TIME_TO_LIVE = 10 * 60 * 1000;
+
+    /**
+     * Default time in milliseconds that a failed attempt is kept
+     */
+    public static final long DEFAULT_FAILURE_TIME_TO_LIVE = 30 * 1000;
+
+    /**
+     * Number of the latest wrong passwords of a user that are kept
+     */
+    private static final int KEPT_FAILURES = 8;
+
+    /**
+     * Number of users whose credentials are kept
+     */
+    private final int maxSize;
+
+    /**
+     * Time in nanoseconds that a verified password and a failed attempt are kept
+     */
+    private final long timeToLive;
+    private final long failureTimeToLive;
+
+    /**
+     * The entry of each user by the user's id
+     */
+    private final IntMap<Entry> entries;
+    private final AtomicInteger size;
+
+    /**
+     * Salt of the hashes, so that the hashes kept in memory are of no use outside of this process
+     */
+    private final byte[] salt;
+
+    /**
+     * Number of checks answered by the cache and of those that had to ask the database
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a new cache
+     *
+     * @param maxSize                 number of users whose credentials are kept; 0 for keeping none
+     * @param timeToLiveMillis        time in milliseconds that a verified password is kept
+     * @param failureTimeToLiveMillis time in milliseconds that a failed attempt is kept
+     * @throws IllegalArgumentException if the size or a time is negative
+     */
+    public CredentialCache(int maxSize, long timeToLiveMillis, long failureTimeToLiveMillis) throws IllegalArgumentException {
+        if (maxSize < 0 || timeToLiveMillis < 0 || failureTimeToLiveMillis < 0)
+            throw new IllegalArgumentException("The size and the times to live of the cache can't be negative");
+
+        this.maxSize = maxSize;
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis);
+        this.failureTimeToLive = TimeUnit.MILLISECONDS.toNanos(failureTimeToLiveMillis);
+        this.entries = new IntMap<>();
+        this.size = new AtomicInteger();
+        this.salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Checks a pair of credentials against what the cache knows
+     *
+     * @param userID   of the user
+     * @param password given by the client
+     * @return what the cache knows about the credentials
+     */
+    public Verdict check(int userID, String password) {
+        Verdict verdict = lookup(userID, password);
+        (verdict == Verdict.UNKNOWN ? misses : hits).incrementAndGet();
+        return verdict;
+    }
+
+    /**
+     * Looks a pair of credentials up without counting the check
+     *
+     * @param userID   of the user
+     * @param password given by the client
+     * @return what the cache knows about the credentials
+     */
+    private Verdict lookup(int userID, String password) {
+        Entry entry = maxSize == 0 ? null : entries.get(userID);
+        if (entry == null || System.nanoTime() - entry.expires > 0) return Verdict.UNKNOWN;
+
+        byte[] hash = hash(password);
+        if (entry.verified != null) {
+            //a user's password never changes, so any other password is wrong
+            return MessageDigest.isEqual(entry.verified, hash) ? Verdict.VALID : Verdict.INVALID;
+        }
+
+        for (byte[] failed : entry.failed) {
+            if (MessageDigest.isEqual(failed, hash)) return Verdict.INVALID;
+        }
+        //a new password of a user that has failed before
+        return Verdict.UNKNOWN;
+    }
+
+    /**
+     * Remembers a password that the database has verified
+     *
+     * @param userID   of the user
+     * @param password that was verified
+     */
+    public void verified(int userID, String password) {
+        if (maxSize == 0) return;
+        put(userID, new Entry(hash(password), new byte[0][], System.nanoTime() + timeToLive));
+    }
+
+    /**
+     * Remembers a password that the database has refused
+     *
+     * @param userID   of the user
+     * @param password that was refused
+     */
+    public void failed(int userID, String password) {
+        if (maxSize == 0) return;
+
+        long now = System.nanoTime();
+        Entry entry = entries.get(userID);
+        Entry failed;
+        if (entry == null || entry.verified != null || now - entry.expires > 0) {
+            failed = new Entry(null, new byte[][]{hash(password)}, now + failureTimeToLive);
+        } else {
+            //only the latest few wrong passwords are kept
+            byte[][] hashes = Arrays.copyOf(entry.failed, Math.min(entry.failed.length + 1, KEPT_FAILURES));
+            System.arraycopy(hashes, 0, hashes, 1, hashes.length - 1);
+            hashes[0] = hash(password);
+            failed = new Entry(null, hashes, now + failureTimeToLive);
+        }
+        put(userID, failed);
+    }
+
+    /**
+     * Forgets the credentials of a user, e.g. once the user is registered anew
+     *
+     * @param userID of the user
+     */
+    public void invalidate(int userID) {
+        if (entries.remove(userID) != null) size.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of checks answered by the cache
+     *
+     * @return the number of checks that didn't need the database
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of checks that had to ask the database
+     *
+     * @return the number of checks that needed the database
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Keeps the entry of a user, evicting entries if the cache is full
+     *
+     * @param userID of the user
+     * @param entry  of the user
+     */
+    private void put(int userID, Entry entry) {
+        if (entries.put(userID, entry) == null && size.incrementAndGet() > maxSize) evict();
+    }
+
+    /**
+     * Evicts the expired entries and, if there are still too many, the oldest ones
+     * until a quarter of the cache is free
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        int[] userIDs = entries.keys();
+        long[] expires = new long[userIDs.length];
+        int kept = 0;
+        for (int userID : userIDs) {
+            Entry entry = entries.get(userID);
+            if (entry == null) continue;
+
+            if (now - entry.expires > 0) {
+                if (entries.remove(userID, entry)) size.decrementAndGet();
+            } else {
+                userIDs[kept] = userID;
+                expires[kept++] = entry.expires;
+            }
+        }
+
+        if (size.get() <= maxSize) return;
+
+        //the entries expiring first are the oldest ones
+        Eviction.evictOldest(expires, kept, size.get() - maxSize * 3 / 4, i -> {
+            Entry entry = entries.get(userIDs[i]);
+            if (entry == null || !entries.remove(userIDs[i], entry)) return false;
+
+            size.decrementAndGet();
+            return true;
+        });
+    }
+
+    /**
+     * Returns the salted hash of a password
+     *
+     * @param password to be hashed
+     * @return the hash of the password
+     */
+    private byte[] hash(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            //every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * What is known about the credentials of a user; never changes once created
+     */
+    private static final class Entry {
+
+        /**
+         * Hash of the verified password; null if only failures are known
+         */
+        final byte[] verified;
+
+        /**
+         * Hashes of the latest wrong passwords, the latest first
+         */
+        final byte[][] failed;
+
+        /**
+         * Time in nanoseconds at which the entry expires
+         */
+        final long expires;
+
+        Entry(byte[] verified, byte[][] failed, long expires) {
+            this.verified = verified;
+            this.failed = failed;
+            this.expires = expires;
+        }
+    }
+}
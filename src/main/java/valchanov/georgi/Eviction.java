@@ -0,0 +1,42 @@
+package valchanov.georgi;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Evicts the least recently used entries of the caches that have grown over their limits.<br>
+ * A cache takes a snapshot of when each of its entries was last used and the entries that are older than
+ * the rest are evicted, one at a time, until enough of them are gone. Other threads could be using
+ * the cache at the same time, so an entry could be gone or renewed by the time it's evicted
+ */
+final class Eviction {
+
+    private Eviction() {
+    }
+
+    /**
+     * Evicts the entries used the longest time ago
+     *
+     * @param lastUsed when each entry of the snapshot was last used
+     * @param count    number of entries in the snapshot
+     * @param excess   number of entries to be evicted
+     * @param evict    evicts the entry at an index of the snapshot; returns false if it was gone already
+     * @return the number of evicted entries
+     */
+    static int evictOldest(long[] lastUsed, int count, int excess, IntPredicate evict) {
+        //other threads could have evicted the entries of the snapshot already
+        excess = Math.min(excess, count);
+        if (excess <= 0) return 0;
+
+        //the entries used no later than the cutoff are the least recently used ones
+        long[] order = Arrays.copyOf(lastUsed, count);
+        Arrays.sort(order);
+        long cutoff = order[excess - 1];
+
+        int evicted = 0;
+        for (int i = 0; i < count && evicted < excess; i++) {
+            if (lastUsed[i] <= cutoff && evict.test(i)) evicted++;
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,38 @@
+package valchanov.georgi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Specifies on what kind of threads the readers and writers of the server are executed
+ */
+public enum ExecutionMode {
+    /**
+     * A fixed pool of platform threads
+     */
+    POOLED,
+    /**
+     * A new virtual thread for every reader and writer, so that a blocking database call only parks its own handler.
+     * On a JVM without virtual threads an unbounded pool of platform threads is used instead
+     */
+    VIRTUAL;
+
+    /**
+     * Creates the executor on which the handlers are executed
+     *
+     * @param workers number of threads in a fixed pool
+     * @return the executor for the handlers
+     */
+    public ExecutorService newExecutor(int workers) {
+        if (this == VIRTUAL) {
+            try {
+                //looked up at runtime so that the server still builds and runs on JVMs older than 21
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Virtual threads are not supported; using a cached thread pool instead");
+                return Executors.newCachedThreadPool();
+            }
+        }
+        return Executors.newFixedThreadPool(workers);
+    }
+}
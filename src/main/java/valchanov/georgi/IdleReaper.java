@@ -0,0 +1,164 @@
+package valchanov.georgi;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Finds the connections of a selection thread that have gone quiet, using a hashed timing wheel.<br>
+ * Every connection sits in the slot of the tick when it should be looked at next. Once a connection has been
+ * quiet for half of the timeout it's pinged, and once it's been quiet for the whole timeout it's expired.
+ * Traffic from a client only updates the time of its {@link Session}; the connection is moved to a later slot
+ * when its slot comes up, so each tick only costs as much as the connections that are due.
+ * <p>
+ * The wheel has enough slots to cover the whole timeout in one turn, so a connection never waits for more than one.
+ * It is only touched by the selection thread that owns it
+ */
+class IdleReaper {
+
+    /**
+     * Number of ticks within the timeout
+     */
+    private static final int TICKS_PER_TIMEOUT = 16;
+
+    /**
+     * The shortest tick, so that a short timeout doesn't make the selector spin
+     */
+    private static final long MIN_TICK = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * Time in nanoseconds after which a quiet connection is expired
+     */
+    private final long timeout;
+
+    /**
+     * Time in nanoseconds between two ticks
+     */
+    private final long tick;
+
+    /**
+     * The slots of the wheel; each one holds the keys to be looked at on its tick
+     */
+    private final ArrayList<ArrayList<SelectionKey>> wheel;
+
+    /**
+     * The slot of the last tick
+     */
+    private int cursor;
+
+    /**
+     * Time of the last tick
+     */
+    private long lastTick;
+
+    /**
+     * Called with a key that has been quiet for half of the timeout
+     */
+    private final Consumer<SelectionKey> onIdle;
+
+    /**
+     * Called with a key that has been quiet for the whole timeout
+     */
+    private final Consumer<SelectionKey> onExpired;
+
+    /**
+     * Creates a new reaper
+     *
+     * @param timeoutMillis time in milliseconds after which a quiet connection is expired
+     * @param onIdle        called with a key that has been quiet for half of the timeout
+     * @param onExpired     called with a key that has been quiet for the whole timeout
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    IdleReaper(long timeoutMillis, Consumer<SelectionKey> onIdle, Consumer<SelectionKey> onExpired) throws IllegalArgumentException {
+        if (timeoutMillis <= 0)
+            throw new IllegalArgumentException("The idle timeout has to be positive");
+
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.tick = Math.max(MIN_TICK, timeout / TICKS_PER_TIMEOUT);
+        this.onIdle = onIdle;
+        this.onExpired = onExpired;
+
+        //one more slot than the timeout takes, so that a connection is never rescheduled in the slot being gone through
+        int slots = (int) (timeout / tick) + 2;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.lastTick = System.nanoTime();
+    }
+
+    /**
+     * Returns the time between two ticks, which is how long the selector should wait at most
+     *
+     * @return the time between two ticks in milliseconds
+     */
+    long tickMillis() {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(tick));
+    }
+
+    /**
+     * Starts watching over a newly registered connection
+     *
+     * @param key of the connection
+     */
+    void watch(SelectionKey key) {
+        schedule(key, System.nanoTime() + timeout / 2);
+    }
+
+    /**
+     * Goes through the slots of every tick that has passed since the last call
+     */
+    void advance() {
+        long now = System.nanoTime();
+        while (now - lastTick >= tick) {
+            lastTick += tick;
+            cursor = (cursor + 1) % wheel.size();
+            expireSlot(wheel.get(cursor), now);
+        }
+    }
+
+    /**
+     * Looks at every connection of a slot and either pings it, expires it or moves it to a later slot
+     *
+     * @param slot of the current tick
+     * @param now  current time
+     */
+    private void expireSlot(ArrayList<SelectionKey> slot, long now) {
+        if (slot.isEmpty()) return;
+
+        //the connections are always moved to other slots, so the slot could be gone through by index
+        for (int i = 0; i < slot.size(); i++) {
+            SelectionKey key = slot.get(i);
+            Session session = Session.of(key);
+
+            //closed connections are simply dropped from the wheel
+            if (!key.isValid() || session == null) continue;
+
+            long quiet = now - session.lastActive();
+            if (quiet >= timeout) {
+                onExpired.accept(key);
+            } else if (quiet >= timeout / 2) {
+                onIdle.accept(key);
+                schedule(key, session.lastActive() + timeout);
+            } else {
+                schedule(key, session.lastActive() + timeout / 2);
+            }
+        }
+        slot.clear();
+    }
+
+    /**
+     * Puts a connection in the slot of the first tick at or after a deadline
+     *
+     * @param key      of the connection
+     * @param deadline when the connection should be looked at next
+     */
+    private void schedule(SelectionKey key, long deadline) {
+        long ticks = (deadline - lastTick + tick - 1) / tick;
+        //never the current slot and never more than one turn
+        ticks = Math.min(Math.max(ticks, 1), wheel.size() - 1);
+
+        wheel.get((int) ((cursor + ticks) % wheel.size())).add(key);
+    }
+}
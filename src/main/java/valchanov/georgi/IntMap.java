@@ -0,0 +1,276 @@
+package valchanov.georgi;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A concurrent map from primitive int keys to values, so that looking a value up doesn't box the key.<br>
+ * The keys are spread across stripes, each one an open addressing table with linear probing behind its own lock.
+ * Lookups don't take the lock unless a writer was busy with the same stripe at the time.
+ * Null values are not allowed
+ *
+ * @param <V> type of the values
+ */
+class IntMap<V> {
+
+    /**
+     * Number of stripes; a power of two
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * Initial number of slots of each stripe; a power of two
+     */
+    private static final int INITIAL_SLOTS = 16;
+
+    private final Stripe<V>[] stripes;
+
+    /**
+     * Creates a new empty map
+     */
+    @SuppressWarnings("unchecked")
+    IntMap() {
+        stripes = (Stripe<V>[]) new Stripe<?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<>();
+        }
+    }
+
+    /**
+     * Returns the value of a key
+     *
+     * @param key whose value is returned
+     * @return the value of the key; null if there's none
+     */
+    V get(int key) {
+        int hash = hash(key);
+        return stripes[hash >>> 28].get(key, hash);
+    }
+
+    /**
+     * Maps a key to a value
+     *
+     * @param key   to be mapped
+     * @param value of the key
+     * @return the previous value of the key; null if there was none
+     */
+    V put(int key, V value) {
+        if (value == null)
+            throw new NullPointerException("Null values are not allowed");
+
+        int hash = hash(key);
+        return stripes[hash >>> 28].put(key, hash, value, false);
+    }
+
+    /**
+     * Maps a key to a value unless it's already mapped
+     *
+     * @param key   to be mapped
+     * @param value of the key
+     * @return the value the key was already mapped to; null if the new value was put
+     */
+    V putIfAbsent(int key, V value) {
+        if (value == null)
+            throw new NullPointerException("Null values are not allowed");
+
+        int hash = hash(key);
+        return stripes[hash >>> 28].put(key, hash, value, true);
+    }
+
+    /**
+     * Removes the mapping of a key
+     *
+     * @param key to be removed
+     * @return the removed value; null if there was none
+     */
+    V remove(int key) {
+        int hash = hash(key);
+        return stripes[hash >>> 28].remove(key, hash, null);
+    }
+
+    /**
+     * Removes the mapping of a key only if it is mapped to a certain value
+     *
+     * @param key   to be removed
+     * @param value the key has to be mapped to
+     * @return true if the mapping was removed
+     */
+    boolean remove(int key, V value) {
+        int hash = hash(key);
+        return stripes[hash >>> 28].remove(key, hash, value) != null;
+    }
+
+    /**
+     * Returns the keys of the map. The keys of each stripe are copied at once,
+     * so a key that is put or removed meanwhile may or may not be among them
+     *
+     * @return a new array of the keys
+     */
+    int[] keys() {
+        int[] keys = new int[0];
+        for (Stripe<V> stripe : stripes) {
+            int[] part = stripe.keys();
+            int at = keys.length;
+            keys = Arrays.copyOf(keys, at + part.length);
+            System.arraycopy(part, 0, keys, at, part.length);
+        }
+        return keys;
+    }
+
+    /**
+     * Spreads the bits of a key, since user ids are sequential
+     *
+     * @param key to be hashed
+     * @return the hash of the key
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A part of the map with its own table and lock
+     */
+    private static class Stripe<V> {
+
+        /**
+         * The keys and the values of a stripe; replaced as a whole when the stripe grows
+         */
+        private static class Table {
+            final int[] keys;
+            final Object[] values;
+
+            Table(int slots) {
+                keys = new int[slots];
+                values = new Object[slots];
+            }
+        }
+
+        private final StampedLock lock = new StampedLock();
+
+        private volatile Table table = new Table(INITIAL_SLOTS);
+
+        private int size;
+
+        V get(int key, int hash) {
+            //try without locking first; the read is only trusted if nothing was written meanwhile
+            long stamp = lock.tryOptimisticRead();
+            V value = find(table, key, hash);
+            if (lock.validate(stamp)) return value;
+
+            stamp = lock.readLock();
+            try {
+                return find(table, key, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        V put(int key, int hash, V value, boolean onlyIfAbsent) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+                for (int i = hash & mask; ; i = (i + 1) & mask) {
+                    if (t.values[i] == null) {
+                        t.keys[i] = key;
+                        t.values[i] = value;
+                        //keep the table at most half full so that the probes stay short
+                        if (++size > t.keys.length / 2) grow();
+                        return null;
+                    }
+                    if (t.keys[i] == key) {
+                        V old = cast(t.values[i]);
+                        if (!onlyIfAbsent) t.values[i] = value;
+                        return old;
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        V remove(int key, int hash, V expected) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int mask = t.keys.length - 1;
+                int i = indexOf(t, key, hash);
+                if (i < 0) return null;
+
+                V old = cast(t.values[i]);
+                if (expected != null && old != expected) return null;
+
+                //shift the following entries of the probe back so that no tombstones are needed
+                int free = i;
+                for (int j = (i + 1) & mask; t.values[j] != null; j = (j + 1) & mask) {
+                    int home = hash(t.keys[j]) & mask;
+                    //the entry could be moved if its home slot isn't cyclically between the free slot and itself
+                    if (((j - home) & mask) >= ((j - free) & mask)) {
+                        t.keys[free] = t.keys[j];
+                        t.values[free] = t.values[j];
+                        free = j;
+                    }
+                }
+                t.values[free] = null;
+                size--;
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int[] keys() {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                int[] keys = new int[size];
+                int at = 0;
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.values[i] != null) keys[at++] = t.keys[i];
+                }
+                return keys;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Doubles the table; called while holding the write lock
+         */
+        private void grow() {
+            Table old = table;
+            Table t = new Table(old.keys.length * 2);
+            int mask = t.keys.length - 1;
+
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.values[i] == null) continue;
+
+                int j = hash(old.keys[i]) & mask;
+                while (t.values[j] != null) j = (j + 1) & mask;
+                t.keys[j] = old.keys[i];
+                t.values[j] = old.values[i];
+            }
+            table = t;
+        }
+
+        private V find(Table t, int key, int hash) {
+            int i = indexOf(t, key, hash);
+            return i < 0 ? null : cast(t.values[i]);
+        }
+
+        private static int indexOf(Table t, int key, int hash) {
+            int mask = t.keys.length - 1;
+            //a torn optimistic read could find no free slot, so never probe more than the whole table
+            for (int i = hash & mask, n = 0; n < t.keys.length && t.values[i] != null; i = (i + 1) & mask, n++) {
+                if (t.keys[i] == key) return i;
+            }
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> V cast(Object value) {
+            return (V) value;
+        }
+    }
+}
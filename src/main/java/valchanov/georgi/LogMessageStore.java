@@ -0,0 +1,597 @@
+package valchanov.georgi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the messages in an append only log of memory mapped files, without a database.<br>
+ * The log is split into segments of a fixed size, each one a file named after the position of its first byte
+ * in the whole log. A message is a record of its length, the CRC32 of its payload and the payload itself:
+ * the thread id, the sender id, the date, the id of the message and the contents in UTF-8. Once a segment is full it's sealed and the
+ * log continues in a new one.
+ * <p>
+ * Every thread has an index of the positions of its records, so its history is read without going through
+ * the messages of the other threads. When a segment is sealed, the part of the indexes that points into it is
+ * written next to it, so on startup only the last segment has to be scanned; the scan stops at the first record
+ * that is torn or doesn't match its CRC, and the log continues from there.
+ * <p>
+ * Only one thread appends at a time, while any number of threads could read
+ */
+public class LogMessageStore implements MessageStore {
+
+    /**
+     * Default size of a segment in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * Bytes of the length and the CRC in front of a record's payload
+     */
+    private static final int HEADER = 8;
+
+    /**
+     * Bytes of the thread id, the sender id, the date and the message id at the start of a payload
+     */
+    private static final int FIXED = 24;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * Directory of the segments
+     */
+    private final Path directory;
+
+    /**
+     * Size of a new segment in bytes
+     */
+    private final int segmentSize;
+
+    /**
+     * The segments by the position of their first byte
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments;
+
+    /**
+     * The index of each thread by the thread's id
+     */
+    private final IntMap<RoomIndex> rooms;
+
+    /**
+     * Ids of the threads that have an index, in the order they were first posted in
+     */
+    private int[] roomIDs;
+    private int roomCount;
+
+    /**
+     * The segment that is appended to
+     */
+    private Segment tail;
+
+    /**
+     * Used for the checksums of the appended records
+     */
+    private final CRC32 crc;
+
+    /**
+     * True if an appended batch is synced to the disk before the append returns
+     */
+    private boolean sync;
+
+    private boolean closed;
+
+    /**
+     * Opens the log in a directory, creating it if it doesn't exist
+     *
+     * @param directory   of the log
+     * @param segmentSize size of a new segment in bytes
+     * @throws IOException              if the log could not be opened or recovered
+     * @throws IllegalArgumentException if a segment would be too small to hold a record
+     */
+    public LogMessageStore(Path directory, int segmentSize) throws IOException, IllegalArgumentException {
+        if (segmentSize < 4096)
+            throw new IllegalArgumentException("A segment has to be at least 4096 bytes");
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.rooms = new IntMap<>();
+        this.roomIDs = new int[16];
+        this.crc = new CRC32();
+        this.sync = true;
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Specifies if an appended batch is synced to the disk before the append returns.
+     * Without syncing a batch survives a crash of the process but not of the machine
+     *
+     * @param sync true for syncing every batch
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    @Override
+    public synchronized void append(List<StoredMessage> batch) throws IOException {
+        if (closed)
+            throw new IOException("The message log is closed");
+
+        //encode the whole batch first, so that a message that doesn't fit doesn't leave half a batch behind
+        byte[][] contents = new byte[batch.size()][];
+        for (int i = 0; i < contents.length; i++) {
+            String text = batch.get(i).getContents();
+            contents[i] = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+            if (HEADER + FIXED + contents[i].length > segmentSize)
+                throw new IOException("A message of " + contents[i].length + " bytes doesn't fit in a segment");
+        }
+
+        //the relay queues the messages of a thread in the order of their ids, so they're appended in that order
+        //and a thread's history is found by a binary search
+        Segment first = tail;
+        int firstEnd = tail.end;
+        long[] positions = new long[contents.length];
+        try {
+            for (int i = 0; i < contents.length; i++) {
+                int size = HEADER + FIXED + contents[i].length;
+                if (tail.end + size > tail.capacity) roll();
+
+                positions[i] = tail.base + tail.end;
+                write(batch.get(i), contents[i]);
+            }
+            if (sync) tail.buffer.force();
+        } catch (IOException e) {
+            //forget what was written of the batch, unless a segment was sealed meanwhile
+            if (tail == first) {
+                tail.end = firstEnd;
+                tail.entries.truncate(firstEnd);
+                if (firstEnd + 4 <= tail.capacity) tail.buffer.putInt(firstEnd, 0);
+            }
+            throw e;
+        }
+
+        //the records are only seen by the readers once all of them are written
+        for (int i = 0; i < positions.length; i++) {
+            StoredMessage message = batch.get(i);
+            roomOf(message.getThreadID()).add(positions[i], message.getSenderID());
+        }
+    }
+
+    @Override
+    public void history(int threadID, long before, int limit, Consumer<StoredMessage> consumer) {
+        RoomIndex room = rooms.get(threadID);
+        if (room == null) return;
+
+        //read the size first, so that the positions array holds at least that many
+        int size = room.size;
+        long[] positions = room.positions;
+
+        //a thread's messages are in the order they were saved in, which is the order of their ids
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (idAt(positions[middle]) < before) low = middle + 1;
+            else high = middle;
+        }
+
+        for (int i = low - 1; i >= 0 && i >= low - limit; i--) {
+            consumer.accept(read(positions[i]));
+        }
+    }
+
+    @Override
+    public synchronized void loadMembers(RoomMembers members) {
+        for (int i = 0; i < roomCount; i++) {
+            int threadID = roomIDs[i];
+            members.joinAll(threadID, rooms.get(threadID).posters.toArray());
+        }
+    }
+
+    /**
+     * Syncs the last segment to the disk. The log can't be appended to afterwards
+     *
+     * @throws IOException if the segment could not be synced
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        tail.buffer.force();
+    }
+
+    /**
+     * Writes a record at the end of the last segment
+     *
+     * @param message  to be written
+     * @param contents of the message in UTF-8
+     */
+    private void write(StoredMessage message, byte[] contents) {
+        ByteBuffer out = tail.writer;
+        int at = tail.end;
+
+        out.clear().position(at + HEADER);
+        out.putInt(message.getThreadID());
+        out.putInt(message.getSenderID());
+        out.putLong(message.getDate());
+        out.putLong(message.getMessageID());
+        out.put(contents);
+
+        out.position(at + HEADER).limit(at + HEADER + FIXED + contents.length);
+        crc.reset();
+        crc.update(out);
+
+        out.putInt(at, FIXED + contents.length);
+        out.putInt(at + 4, (int) crc.getValue());
+
+        tail.entries.add(message.getThreadID(), at);
+        tail.end = at + HEADER + FIXED + contents.length;
+    }
+
+    /**
+     * Seals the last segment and continues the log in a new one
+     *
+     * @throws IOException if the index of the sealed segment could not be written or a new segment created
+     */
+    private void roll() throws IOException {
+        Segment sealed = tail;
+        //an empty length marks the end of the records
+        if (sealed.end + 4 <= sealed.capacity) sealed.buffer.putInt(sealed.end, 0);
+        sealed.buffer.force();
+        writeIndex(sealed);
+
+        tail = createSegment(sealed.base + sealed.capacity);
+        sealed.entries = null;
+    }
+
+    /**
+     * Opens the segments of the log, loading the indexes of the sealed ones and scanning the last one
+     *
+     * @throws IOException if a segment could not be opened
+     */
+    private void recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            for (Path log : logs) {
+                String name = log.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+            }
+        }
+        Collections.sort(bases);
+
+        if (bases.isEmpty()) {
+            tail = createSegment(0);
+            return;
+        }
+
+        for (int i = 0; i < bases.size() - 1; i++) {
+            Segment sealed = openSegment(bases.get(i), FileChannel.MapMode.READ_ONLY);
+            if (!readIndex(sealed)) {
+                //a segment that was sealed without its index is scanned once and gets one
+                sealed.entries = new Entries();
+                scan(sealed);
+                writeIndex(sealed);
+            }
+            publish(sealed);
+            sealed.entries = null;
+        }
+
+        long last = bases.get(bases.size() - 1);
+        if (Files.size(directory.resolve(name(last) + LOG_SUFFIX)) < HEADER + FIXED) {
+            //a segment that was cut short before it got a single record is started over
+            Files.delete(directory.resolve(name(last) + LOG_SUFFIX));
+            tail = createSegment(last);
+            return;
+        }
+
+        tail = openSegment(last, FileChannel.MapMode.READ_WRITE);
+        tail.entries = new Entries();
+        scan(tail);
+        //whatever follows the last whole record is overwritten by the next append
+        if (tail.end + 4 <= tail.capacity) tail.buffer.putInt(tail.end, 0);
+        publish(tail);
+    }
+
+    /**
+     * Finds the records of a segment, up to the first one that is torn or doesn't match its CRC
+     *
+     * @param segment to be scanned
+     */
+    private void scan(Segment segment) {
+        ByteBuffer in = segment.buffer.duplicate();
+        int at = 0;
+        while (at + HEADER + FIXED <= segment.capacity) {
+            int length = in.getInt(at);
+            if (length < FIXED || length > segment.capacity - at - HEADER) break;
+
+            in.clear().position(at + HEADER).limit(at + HEADER + length);
+            crc.reset();
+            crc.update(in);
+            in.clear();
+            if ((int) crc.getValue() != in.getInt(at + 4)) break;
+
+            segment.entries.add(in.getInt(at + HEADER), at);
+            at += HEADER + length;
+        }
+        segment.end = at;
+    }
+
+    /**
+     * Adds the records of a segment to the indexes of their threads
+     *
+     * @param segment whose entries are added
+     */
+    private void publish(Segment segment) {
+        Entries entries = segment.entries;
+        for (int i = 0; i < entries.size; i++) {
+            int offset = entries.offsets[i];
+            int senderID = segment.buffer.getInt(offset + HEADER + 4);
+            roomOf(entries.threadIDs[i]).add(segment.base + offset, senderID);
+        }
+    }
+
+    /**
+     * Writes the thread ids and the offsets of the records of a sealed segment next to it
+     *
+     * @param segment that was sealed
+     * @throws IOException if the index could not be written
+     */
+    private void writeIndex(Segment segment) throws IOException {
+        Path index = directory.resolve(name(segment.base) + INDEX_SUFFIX);
+        Path temporary = directory.resolve(name(segment.base) + INDEX_SUFFIX + ".tmp");
+
+        Entries entries = segment.entries;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(entries.size);
+            for (int i = 0; i < entries.size; i++) {
+                out.writeInt(entries.threadIDs[i]);
+                out.writeInt(entries.offsets[i]);
+            }
+        }
+        //a crash while writing leaves no index rather than half of one
+        Files.move(temporary, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the index of a sealed segment
+     *
+     * @param segment whose index is read
+     * @return false if the segment has no whole index
+     * @throws IOException if the index could not be read
+     */
+    private boolean readIndex(Segment segment) throws IOException {
+        Path index = directory.resolve(name(segment.base) + INDEX_SUFFIX);
+        if (!Files.exists(index)) return false;
+
+        long bytes = Files.size(index);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)))) {
+            int size = in.readInt();
+            if (bytes != 4 + 8L * size) return false;
+
+            Entries entries = new Entries();
+            for (int i = 0; i < size; i++) {
+                entries.add(in.readInt(), in.readInt());
+            }
+            segment.entries = entries;
+        }
+        return true;
+    }
+
+    /**
+     * Creates a new empty segment
+     *
+     * @param base position of the segment's first byte in the log
+     * @return the new segment
+     * @throws IOException if the segment could not be created
+     */
+    private Segment createSegment(long base) throws IOException {
+        Path path = directory.resolve(name(base) + LOG_SUFFIX);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //mapping past the end of the file grows it to the whole segment
+            Segment segment = new Segment(base, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segment.entries = new Entries();
+            segments.put(base, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Maps an existing segment
+     *
+     * @param base position of the segment's first byte in the log
+     * @param mode READ_ONLY for a sealed segment, READ_WRITE for the last one
+     * @return the segment
+     * @throws IOException if the segment could not be mapped
+     */
+    private Segment openSegment(long base, FileChannel.MapMode mode) throws IOException {
+        Path path = directory.resolve(name(base) + LOG_SUFFIX);
+        StandardOpenOption[] options = mode == FileChannel.MapMode.READ_ONLY
+                ? new StandardOpenOption[]{StandardOpenOption.READ}
+                : new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE};
+
+        try (FileChannel channel = FileChannel.open(path, options)) {
+            Segment segment = new Segment(base, channel.map(mode, 0, channel.size()));
+            segments.put(base, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Returns the index of a thread, creating it if the thread has none
+     *
+     * @param threadID of the thread
+     * @return the index of the thread
+     */
+    private RoomIndex roomOf(int threadID) {
+        RoomIndex room = rooms.get(threadID);
+        if (room == null) {
+            room = new RoomIndex();
+            rooms.put(threadID, room);
+            if (roomCount == roomIDs.length) roomIDs = Arrays.copyOf(roomIDs, roomCount * 2);
+            roomIDs[roomCount++] = threadID;
+        }
+        return room;
+    }
+
+    /**
+     * Reads the record at a position of the log
+     *
+     * @param position of the record
+     * @return the message of the record
+     */
+    private StoredMessage read(long position) {
+        Map.Entry<Long, Segment> entry = segments.floorEntry(position);
+        Segment segment = entry.getValue();
+        int at = (int) (position - segment.base);
+
+        ByteBuffer in = segment.buffer.duplicate();
+        int length = in.getInt(at);
+        byte[] contents = new byte[length - FIXED];
+        in.position(at + HEADER + FIXED);
+        in.get(contents);
+
+        return new StoredMessage(in.getLong(at + HEADER + 16), in.getInt(at + HEADER), in.getInt(at + HEADER + 4),
+                in.getLong(at + HEADER + 8), new String(contents, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the message id of the record at a position of the log
+     *
+     * @param position of the record
+     * @return the id of the record's message
+     */
+    private long idAt(long position) {
+        Segment segment = segments.floorEntry(position).getValue();
+        return segment.buffer.getLong((int) (position - segment.base) + HEADER + 16);
+    }
+
+    /**
+     * Returns the file name of a segment, padded so that the names sort like the positions
+     *
+     * @param base position of the segment's first byte in the log
+     * @return the file name without the suffix
+     */
+    private static String name(long base) {
+        return String.format("%020d", base);
+    }
+
+    /**
+     * A file of the log
+     */
+    private static final class Segment {
+
+        /**
+         * Position of the segment's first byte in the log
+         */
+        final long base;
+
+        /**
+         * The mapped file; only read with absolute gets, so it's shared by the readers
+         */
+        final MappedByteBuffer buffer;
+
+        /**
+         * A view of the mapped file used only for appending
+         */
+        final ByteBuffer writer;
+
+        /**
+         * Size of the file in bytes
+         */
+        final int capacity;
+
+        /**
+         * Number of bytes taken by whole records
+         */
+        int end;
+
+        /**
+         * The records of the segment until it's sealed and its index is written
+         */
+        Entries entries;
+
+        Segment(long base, MappedByteBuffer buffer) {
+            this.base = base;
+            this.buffer = buffer;
+            this.writer = buffer.duplicate();
+            this.capacity = buffer.capacity();
+        }
+    }
+
+    /**
+     * The thread ids and offsets of the records of a segment
+     */
+    private static final class Entries {
+        int[] threadIDs = new int[256];
+        int[] offsets = new int[256];
+        int size;
+
+        void add(int threadID, int offset) {
+            if (size == offsets.length) {
+                threadIDs = Arrays.copyOf(threadIDs, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            threadIDs[size] = threadID;
+            offsets[size++] = offset;
+        }
+
+        /**
+         * Drops the entries of the records from an offset on
+         *
+         * @param offset of the first record that is dropped
+         */
+        void truncate(int offset) {
+            while (size > 0 && offsets[size - 1] >= offset) size--;
+        }
+    }
+
+    /**
+     * The positions of the records of a thread in the order they were appended.<br>
+     * Only the appending thread adds to it; the size is written after the position, so a reader that reads
+     * the size first always finds that many positions in the array
+     */
+    private static final class RoomIndex {
+        volatile long[] positions = new long[16];
+        volatile int size;
+
+        /**
+         * Everyone who has posted in the thread
+         */
+        MemberSet posters = MemberSet.EMPTY;
+
+        void add(long position, int senderID) {
+            long[] current = positions;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, size * 2);
+                positions = current;
+            }
+            current[size] = position;
+            size = size + 1;
+
+            if (senderID >= 0) posters = posters.with(senderID);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class used for saving errors onto a log file
@@ -20,6 +22,11 @@ public class Logger {
      * Date time format of the exceptions logged into the logging file
      */
     private SimpleDateFormat dateFormat;
+    /**
+     * Makes sure only one thread appends to the file at a time
+     * (a lock instead of a monitor so that a virtual thread writing to the file doesn't pin its carrier)
+     */
+    private final Lock fileLock;
 
     /**
      * Create a new logger with a specified path to the log file and a date format
@@ -32,6 +39,7 @@ public class Logger {
     public Logger(String logFile, String dateFormat) {
         this.logFile = Paths.get(logFile);
         this.dateFormat = new SimpleDateFormat(dateFormat);
+        this.fileLock = new ReentrantLock();
     }
 
     /**
@@ -42,17 +50,18 @@ public class Logger {
     public void log(Exception e) {
         if (logFile != null && Files.exists(logFile)) {
             StringBuilder builder = new StringBuilder();
-            // get the time of the crash
-            builder.append(dateFormat.format(new Date())).append(" ").append(e.getMessage())
-                    .append(System.getProperty("line.separator"));
+            // append at the end of the file
+            fileLock.lock();
             try {
-                // append at the end of the file
-                synchronized (logFile) {
-                    Files.write(logFile, builder.toString().getBytes(), StandardOpenOption.APPEND);
-                }
+                // get the time of the crash (the date format isn't thread safe either)
+                builder.append(dateFormat.format(new Date())).append(" ").append(e.getMessage())
+                        .append(System.getProperty("line.separator"));
+                Files.write(logFile, builder.toString().getBytes(), StandardOpenOption.APPEND);
             } catch (IOException e1) {
                 // well i really don't know what to do here
                 e1.printStackTrace();
+            } finally {
+                fileLock.unlock();
             }
         }
     }
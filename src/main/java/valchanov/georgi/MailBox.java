@@ -0,0 +1,137 @@
+package valchanov.georgi;
+
+import valchanov.georgi.messages.Message;
+
+import java.util.AbstractQueue;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A queue of messages scheduled to be sent to a single client.<br>
+ * The mail box holds at most a fixed number of messages and a fixed number of bytes; offering a message to a full
+ * box fails, and it's up to the {@link MailOffice} to decide what happens to the client then.
+ * <p>
+ * Messages are put in the box by any number of threads. They are taken out by the thread writing to the client,
+ * but also by the senders that drop the oldest messages of a full box, so the box is safe for any number of
+ * threads taking messages at once: every message is taken by exactly one of them and the counts stay exact
+ */
+public class MailBox extends AbstractQueue<Message> {
+
+    /**
+     * The messages in the box
+     */
+    private final ConcurrentLinkedQueue<Message> messages;
+
+    /**
+     * Number of messages in the box
+     * (kept apart since counting the messages of the queue goes through all of them)
+     */
+    private final AtomicInteger size;
+
+    /**
+     * Number of bytes of the messages in the box
+     */
+    private final AtomicLong bytes;
+
+    /**
+     * Maximum number of messages in the box
+     */
+    private final int capacity;
+
+    /**
+     * Maximum number of bytes of the messages in the box
+     */
+    private final long byteCapacity;
+
+    /**
+     * Creates a new mail box
+     *
+     * @param capacity     maximum number of messages in the box
+     * @param byteCapacity maximum number of bytes of the messages in the box
+     * @throws IllegalArgumentException if either of the capacities is not positive
+     */
+    public MailBox(int capacity, long byteCapacity) throws IllegalArgumentException {
+        if (capacity < 1 || byteCapacity < 1)
+            throw new IllegalArgumentException("A mail box has to hold at least one message");
+
+        this.messages = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger();
+        this.bytes = new AtomicLong();
+        this.capacity = capacity;
+        this.byteCapacity = byteCapacity;
+    }
+
+    /**
+     * Puts a message in the box if it isn't full.
+     * A message bigger than all of the bytes of the box still fits in an empty one
+     *
+     * @param message to be put in the box
+     * @return true if the message was put in the box; false if the box is full
+     */
+    @Override
+    public boolean offer(Message message) {
+        //claim a place first so that concurrent senders can't overfill the box
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+
+        int length = message.length();
+        long before = bytes.getAndAdd(length);
+        if (before > 0 && before + length > byteCapacity) {
+            bytes.addAndGet(-length);
+            size.decrementAndGet();
+            return false;
+        }
+
+        messages.add(message);
+        return true;
+    }
+
+    @Override
+    public Message poll() {
+        Message m = messages.poll();
+        if (m != null) {
+            size.decrementAndGet();
+            bytes.addAndGet(-m.length());
+        }
+        return m;
+    }
+
+    @Override
+    public Message peek() {
+        return messages.peek();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return messages.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the maximum number of messages in the box
+     *
+     * @return the capacity of the box
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns an iterator over the messages in the box. Messages could only be taken out through {@link #poll()}
+     *
+     * @return a read only iterator over the messages
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        return Collections.unmodifiableCollection(messages).iterator();
+    }
+}
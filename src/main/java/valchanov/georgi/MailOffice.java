@@ -2,24 +2,161 @@ package valchanov.georgi;
 
 import valchanov.georgi.messages.Message;
 
+import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Provides a mapping between an integer and a selection key.<br>
- * It is expected that to the selection key a queue of messages it attached.
+ * It is expected that to the selection key a {@link Session} with an open mail box is attached.
+ * <p>
+ * Every mail box holds a limited number of messages and bytes, so that a client that doesn't keep up with its messages
+ * can't grow the memory of the server without a limit. What happens once a box is full is up to the
+ * {@link Overflow} policy of the office
  */
 public class MailOffice {
+
+    /**
+     * What is done when a message is put in a full mail box
+     */
+    public enum Overflow {
+        /**
+         * The oldest messages in the box are dropped to make room for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * The new message is dropped
+         */
+        DROP_NEWEST,
+        /**
+         * The client is disconnected
+         */
+        DISCONNECT
+    }
+
+    /**
+     * Default maximum number of messages waiting in a mail box
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Default maximum number of bytes of the messages waiting in a mail box
+     */
+    public static final long DEFAULT_BYTE_CAPACITY = 4 << 20;
+
+    /**
+     * Each mail box is used as a user id to it's selection key.
+     * The session of the key keeps the number as well, so that the box could be found from the key
+     */
+    private final IntMap<SelectionKey> boxNo_to_Key;
+
+    /**
+     * Numbers of the mail boxes that are open at the moment, i.e. the users that are online
+     */
+    private final ConcurrentBitSet online;
+
+    /**
+     * Maximum number of messages waiting in a mail box
+     */
+    private int capacity;
+
+    /**
+     * Maximum number of bytes of the messages waiting in a mail box
+     */
+    private long byteCapacity;
+
+    /**
+     * What is done when a message is put in a full mail box
+     */
+    private Overflow overflow;
+
     /**
-     * Each mail box is used as a user id to it's selection key
+     * Number of messages that were put in a mail box
      */
-    private final TreeMap<Integer, SelectionKey> boxNo_to_Key;
+    private final AtomicLong delivered;
+
+    /**
+     * Number of old messages dropped from full mail boxes
+     */
+    private final AtomicLong droppedOldest;
+
+    /**
+     * Number of new messages dropped since their mail box was full
+     */
+    private final AtomicLong droppedNewest;
+
+    /**
+     * Number of clients disconnected since their mail box was full
+     */
+    private final AtomicLong disconnected;
 
     /**
      * Creates a new mail office
      */
     public MailOffice() {
-        this.boxNo_to_Key = new TreeMap<>();
+        this.boxNo_to_Key = new IntMap<>();
+        this.online = new ConcurrentBitSet();
+        this.capacity = DEFAULT_CAPACITY;
+        this.byteCapacity = DEFAULT_BYTE_CAPACITY;
+        this.overflow = Overflow.DROP_OLDEST;
+        this.delivered = new AtomicLong();
+        this.droppedOldest = new AtomicLong();
+        this.droppedNewest = new AtomicLong();
+        this.disconnected = new AtomicLong();
+    }
+
+    /**
+     * Specifies how many messages could wait in a mail box and what is done once it's full.
+     * Only affects the mail boxes opened after the call
+     *
+     * @param capacity maximum number of messages waiting in a mail box
+     * @param overflow what is done when a message is put in a full mail box
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public void setMailBoxLimit(int capacity, Overflow overflow) throws IllegalArgumentException {
+        setMailBoxLimit(capacity, DEFAULT_BYTE_CAPACITY, overflow);
+    }
+
+    /**
+     * Specifies how many messages and bytes could wait in a mail box and what is done once it's full.
+     * Only affects the mail boxes opened after the call
+     *
+     * @param capacity     maximum number of messages waiting in a mail box
+     * @param byteCapacity maximum number of bytes of the messages waiting in a mail box
+     * @param overflow     what is done when a message is put in a full mail box
+     * @throws IllegalArgumentException if either of the capacities is not positive
+     */
+    public void setMailBoxLimit(int capacity, long byteCapacity, Overflow overflow) throws IllegalArgumentException {
+        if (capacity < 1 || byteCapacity < 1)
+            throw new IllegalArgumentException("A mail box has to hold at least one message");
+
+        this.capacity = capacity;
+        this.byteCapacity = byteCapacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Returns the maximum number of messages waiting in a newly opened mail box
+     *
+     * @return the capacity of a mail box
+     */
+    public int mailBoxLimit() {
+        return capacity;
+    }
+
+    /**
+     * Opens the mail box of the session attached to a key, with the capacities of the office
+     *
+     * @param key of the connection
+     * @throws IllegalArgumentException if the selection key does not have a session
+     */
+    public void openMailBox(SelectionKey key) throws IllegalArgumentException {
+        Session session = Session.of(key);
+        if (session == null)
+            throw new IllegalArgumentException("The selection key doesn't have a session attached to it");
+
+        session.openMailBox(capacity, byteCapacity);
     }
 
 
@@ -28,44 +165,65 @@ public class MailOffice {
      *
      * @param number of the mail box
      * @param key    to the mail box
-     * @throws IllegalArgumentException if the selection key does not have a queue attached to it
+     * @throws IllegalArgumentException if the selection key does not have a session with an open mail box
      */
     public void newMailBox(int number, SelectionKey key) throws IllegalArgumentException {
-        if (!(key.attachment() instanceof Queue))
-            throw new IllegalArgumentException("The selection key doesn't have a queue attached to it");
+        Session session = Session.of(key);
+        if (session == null || session.mailBox() == null)
+            throw new IllegalArgumentException("The selection key doesn't have a mail box attached to it");
 
-        synchronized (this) {
-            boxNo_to_Key.put(number, key);
-        }
+        session.setBoxNumber(number);
+        boxNo_to_Key.put(number, key);
+        if (number >= 0) online.set(number);
     }
 
     /**
-     * Removes a mail box
+     * Removes a mail box and releases the messages that were waiting in it
      *
      * @param number used for finding the box that needs to be removed
      * @return true if there was a mail box before removal
      */
-    public synchronized boolean removeMailBox(int number) {
-        return boxNo_to_Key.remove(number) != null;
+    public boolean removeMailBox(int number) {
+        SelectionKey key = boxNo_to_Key.remove(number);
+        if (key == null) return false;
+
+        goOffline(number);
+        Session.of(key).setBoxNumber(-1);
+        discardMail(key);
+        return true;
     }
 
     /**
-     * Removes a mail box
+     * Removes a mail box and releases the messages that were waiting in it
      *
      * @param key used for finding the box that needs to be removed
      * @return true if there was a mail box before removal
      */
-    public synchronized boolean removeMailBox(SelectionKey key) {
+    public boolean removeMailBox(SelectionKey key) {
+        discardMail(key);
+
+        //the session knows the number of its box
+        Session session = Session.of(key);
+        int number = session == null ? -1 : session.boxNumber();
+        if (number < 0) return false;
 
-        //find the number of the selection key
-        Optional<Integer> o = boxNo_to_Key.entrySet().stream()
-                .filter(e -> key.equals(e.getValue()))
-                .map(Map.Entry::getKey)
-                .findFirst();
+        session.setBoxNumber(-1);
+        //only if the number hasn't been given to a newer connection of the same user
+        if (!boxNo_to_Key.remove(number, key)) return false;
 
-        //remove if present
-        Integer k;
-        return (k = o.orElse(null)) != null && boxNo_to_Key.remove(k) != null;
+        goOffline(number);
+        return true;
+    }
+
+    /**
+     * Marks the user of a removed mail box as offline
+     *
+     * @param number of the removed mail box
+     */
+    private void goOffline(int number) {
+        online.clear(number);
+        //a newer connection of the user could have opened a box meanwhile
+        if (boxNo_to_Key.get(number) != null) online.set(number);
     }
 
     /**
@@ -80,46 +238,142 @@ public class MailOffice {
 
     /**
      * Put a message in multiple boxes.The keys if the users' where the message was put have their interest
-     * set to op_write
+     * set to op_write. Receivers that don't have a mail box at the moment are skipped;
+     * the receivers are intersected with the online users first, so only the open boxes are looked up
      *
      * @param message   that is to be put in the mail boxes
      * @param receivers the mail box numbers of the receivers
+     * @param except    mail box number that is skipped, such as the one of the message's sender
      */
-    public void putMessageInBoxes(Message message, ArrayList<Integer> receivers) {
-        receivers.stream()
-                .map(boxNo_to_Key::get)
-                .filter(Objects::nonNull)
-                .forEach(key -> {
+    public void putMessageInBoxes(Message message, MemberSet receivers, int except) {
+        receivers.forEachIn(online, receiver -> {
+            if (receiver == except) return;
 
-                            putMessageInBox(key, message);
-                        }
-                );
+            SelectionKey key = boxNo_to_Key.get(receiver);
+            if (key != null) putMessageInBox(key, message);
+        });
     }
 
     /**
      * Puts a message in a mail box. The keys if the users' where the message was put have their interest
-     * set to op_write
+     * set to op_write.
+     * The mail box holds its own reference to the message, so the caller still has to release theirs.
+     * If the mail box is full, the overflow policy of the office is applied.
+     * If there is no such box, e.g. because its client has just disconnected, the message is dropped
      *
      * @param boxNo   of the box that the message is going to be put in
      * @param message that is to be put in a message box
-     * @throws IllegalArgumentException If the {@link SelectionKey} does not have a Queue<Message> attached to it
+     * @throws IllegalArgumentException If the {@link SelectionKey} does not have a mail box attached to it
      */
     public void putMessageInBox(int boxNo, Message message) throws IllegalArgumentException {
-        putMessageInBox(boxNo_to_Key.get(boxNo), message);
+        //replies are sent from the workers, so the box could have been removed since the client was checked
+        SelectionKey key = boxNo_to_Key.get(boxNo);
+        if (key != null) putMessageInBox(key, message);
     }
 
     public void putMessageInBox(SelectionKey key, Message message) throws IllegalArgumentException {
         //add a message to the queue of the key and set it up for writing
-        Queue<Message> mailBox;
-        try {
-            mailBox = (Queue<Message>) key.attachment();
-        } catch (ClassCastException e) {
-            throw new IllegalArgumentException("The attached queue doesn't hold instances of the Message class");
-        }
+        Session session = Session.of(key);
+        MailBox mailBox = session == null ? null : session.mailBox();
+        if (mailBox == null)
+            throw new IllegalArgumentException("The selection key doesn't have a mail box attached to it");
 
-        mailBox.add(message);
+        if (!mailBox.offer(message.retain()) && !overflow(key, mailBox, message)) {
+            return;
+        }
+        delivered.incrementAndGet();
 
         //turn on write interest
-        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        //(the change goes through the thread watching over the key, which could be another than the one being handled)
+        session.selectionThread().addInterest(key, SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Deals with a message that didn't fit in a full mail box according to the overflow policy
+     *
+     * @param key     whose mail box is full
+     * @param mailBox that is full
+     * @param message that didn't fit; the reference taken for the mail box is released if it's not put in it
+     * @return true if the message was put in the mail box after all
+     */
+    private boolean overflow(SelectionKey key, MailBox mailBox, Message message) {
+        switch (overflow) {
+            case DROP_OLDEST:
+                //make room by dropping from the head of the box
+                //(the box is safe for several threads taking from it, so the writer could be taking at the same
+                //time; other senders could be filling it at the same time, so keep trying)
+                do {
+                    Message oldest = mailBox.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        droppedOldest.incrementAndGet();
+                    }
+                } while (!mailBox.offer(message));
+                return true;
+
+            case DROP_NEWEST:
+                message.release();
+                droppedNewest.incrementAndGet();
+                return false;
+
+            default:
+                message.release();
+                disconnected.incrementAndGet();
+                System.out.println("Disconnecting a client that doesn't keep up with its messages");
+
+                removeMailBox(key);
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    //the channel is being closed anyway
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of messages that were put in a mail box
+     *
+     * @return the number of delivered messages
+     */
+    public long delivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Returns the number of old messages dropped from full mail boxes
+     *
+     * @return the number of dropped old messages
+     */
+    public long droppedOldest() {
+        return droppedOldest.get();
+    }
+
+    /**
+     * Returns the number of new messages dropped since their mail box was full
+     *
+     * @return the number of dropped new messages
+     */
+    public long droppedNewest() {
+        return droppedNewest.get();
+    }
+
+    /**
+     * Returns the number of clients disconnected since their mail box was full
+     *
+     * @return the number of disconnected clients
+     */
+    public long disconnected() {
+        return disconnected.get();
+    }
+
+    /**
+     * Releases the messages waiting in the mail box of a key
+     *
+     * @param key whose mail box is emptied
+     */
+    private void discardMail(SelectionKey key) {
+        Session session = Session.of(key);
+        if (session != null) session.discardMail();
     }
 }
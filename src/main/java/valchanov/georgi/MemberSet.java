@@ -0,0 +1,236 @@
+package valchanov.georgi;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * An immutable set of user ids, used for the members of a chat room.<br>
+ * A small or sparse set is kept as a sorted array of ids, and a dense one as a bitmap where each bit is an id,
+ * whichever of the two takes less memory. Adding a member creates a new set, so the set could be read by any number
+ * of threads while the room is being joined
+ */
+public final class MemberSet {
+
+    /**
+     * A set without any members
+     */
+    public static final MemberSet EMPTY = new MemberSet(new int[0], null, 0);
+
+    /**
+     * The ids in ascending order; null if the set is a bitmap
+     */
+    private final int[] ids;
+
+    /**
+     * Bit i of the bitmap is set if id i is a member; null if the set is an array
+     */
+    private final long[] bits;
+
+    /**
+     * Number of members
+     */
+    private final int size;
+
+    private MemberSet(int[] ids, long[] bits, int size) {
+        this.ids = ids;
+        this.bits = bits;
+        this.size = size;
+    }
+
+    /**
+     * Returns a set with one more member
+     *
+     * @param id of the new member; not negative
+     * @return a new set with the member; this set if the id is already a member
+     * @throws IllegalArgumentException if the id is negative
+     */
+    public MemberSet with(int id) throws IllegalArgumentException {
+        if (id < 0)
+            throw new IllegalArgumentException("A member id can't be negative");
+        if (contains(id)) return this;
+
+        int newSize = size + 1;
+        int max = Math.max(id, max());
+
+        //an int per member against a bit per id up to the largest one
+        if (bitmapLength(max) * 2 < newSize) {
+            long[] newBits = bits == null ? new long[bitmapLength(max)] : Arrays.copyOf(bits, Math.max(bits.length, bitmapLength(max)));
+            if (bits == null) {
+                for (int member : ids) newBits[member >>> 6] |= 1L << member;
+            }
+            newBits[id >>> 6] |= 1L << id;
+            return new MemberSet(null, newBits, newSize);
+        }
+
+        //a far off id could make a bitmap sparse again
+        int[] current = bits == null ? ids : toArray();
+        int[] newIds = new int[newSize];
+        int at = -Arrays.binarySearch(current, id) - 1;
+        System.arraycopy(current, 0, newIds, 0, at);
+        newIds[at] = id;
+        System.arraycopy(current, at, newIds, at + 1, size - at);
+        return new MemberSet(newIds, null, newSize);
+    }
+
+    /**
+     * Returns a set with many more members at once, built in a single pass instead of a new set per member
+     *
+     * @param newIDs of the new members, in any order and possibly repeated; not negative
+     * @return a new set with the members; this set if there are no new members
+     * @throws IllegalArgumentException if an id is negative
+     */
+    public MemberSet withAll(int[] newIDs) throws IllegalArgumentException {
+        if (newIDs.length == 0) return this;
+
+        int[] all = Arrays.copyOf(toArray(), size + newIDs.length);
+        System.arraycopy(newIDs, 0, all, size, newIDs.length);
+        Arrays.sort(all);
+        if (all[0] < 0)
+            throw new IllegalArgumentException("A member id can't be negative");
+
+        int count = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (i == 0 || all[i] != all[i - 1]) all[count++] = all[i];
+        }
+        if (count == size) return this;
+
+        //an int per member against a bit per id up to the largest one
+        int max = all[count - 1];
+        if (bitmapLength(max) * 2 < count) {
+            long[] newBits = new long[bitmapLength(max)];
+            for (int i = 0; i < count; i++) newBits[all[i] >>> 6] |= 1L << all[i];
+            return new MemberSet(null, newBits, count);
+        }
+        return new MemberSet(Arrays.copyOf(all, count), null, count);
+    }
+
+    /**
+     * Returns the members in ascending order
+     *
+     * @return a new array of the members
+     */
+    public int[] toArray() {
+        if (bits == null) return ids.clone();
+
+        int[] members = new int[size];
+        int[] at = {0};
+        forEach(id -> members[at[0]++] = id);
+        return members;
+    }
+
+    /**
+     * Returns a set with one member less
+     *
+     * @param id of the member to be removed
+     * @return a new set without the member; this set if the id isn't a member
+     */
+    public MemberSet without(int id) {
+        if (!contains(id)) return this;
+
+        if (bits != null) {
+            long[] newBits = bits.clone();
+            newBits[id >>> 6] &= ~(1L << id);
+            return new MemberSet(null, newBits, size - 1);
+        }
+
+        int[] newIds = new int[size - 1];
+        int at = Arrays.binarySearch(ids, id);
+        System.arraycopy(ids, 0, newIds, 0, at);
+        System.arraycopy(ids, at + 1, newIds, at, size - at - 1);
+        return new MemberSet(newIds, null, size - 1);
+    }
+
+    /**
+     * Returns true if an id is a member of the set
+     *
+     * @param id to be looked for
+     * @return true if the id is a member
+     */
+    public boolean contains(int id) {
+        if (id < 0) return false;
+        if (bits != null)
+            return (id >>> 6) < bits.length && (bits[id >>> 6] & (1L << id)) != 0;
+
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    /**
+     * Returns the number of members
+     *
+     * @return the number of members
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Passes every member to a consumer in ascending order
+     *
+     * @param consumer of the members
+     */
+    public void forEach(IntConsumer consumer) {
+        if (bits == null) {
+            for (int id : ids) consumer.accept(id);
+            return;
+        }
+
+        for (int i = 0; i < bits.length; i++) {
+            long word = bits[i];
+            while (word != 0) {
+                consumer.accept((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Passes every member that is also in another set to a consumer in ascending order.
+     * A bitmap is intersected a word at a time, so members that aren't in the other set cost nothing
+     *
+     * @param other    set that the members are looked for in
+     * @param consumer of the members in both sets
+     */
+    void forEachIn(ConcurrentBitSet other, IntConsumer consumer) {
+        if (bits == null) {
+            for (int id : ids) {
+                if (other.get(id)) consumer.accept(id);
+            }
+            return;
+        }
+
+        for (int i = 0; i < bits.length; i++) {
+            long word = bits[i];
+            if (word == 0) continue;
+
+            word &= other.word(i);
+            while (word != 0) {
+                consumer.accept((i << 6) + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+    }
+
+    /**
+     * Returns the largest member
+     *
+     * @return the largest member; -1 if there are none
+     */
+    private int max() {
+        if (size == 0) return -1;
+        if (bits == null) return ids[size - 1];
+
+        for (int i = bits.length - 1; ; i--) {
+            if (bits[i] != 0) return (i << 6) + 63 - Long.numberOfLeadingZeros(bits[i]);
+        }
+    }
+
+    /**
+     * Returns the number of words of a bitmap holding ids up to a value
+     *
+     * @param max the largest id
+     * @return the number of words
+     */
+    private static int bitmapLength(int max) {
+        return (max >>> 6) + 1;
+    }
+}
@@ -0,0 +1,252 @@
+package valchanov.georgi;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps the members of the chat threads in the room_members table of the database, so that who is in a thread
+ * doesn't have to be derived from the messages.<br>
+ * A row is inserted when a user joins a thread and deleted when the user leaves it. On start the table is loaded
+ * into the {@link RoomMembers} in ranges of thread ids that are read in parallel. A database that doesn't have
+ * the table yet gets it on start, filled with everyone who has posted in each thread
+ */
+public class MembershipTable {
+
+    /**
+     * Used to create the table in a database that was set up before it existed
+     */
+    private static final String CREATE_TABLE =
+            "CREATE TABLE room_members (tid integer not null, uid integer not null, primary key (tid, uid))";
+    /**
+     * Used to find the threads of a user
+     */
+    private static final String CREATE_INDEX = "CREATE INDEX members_by_user ON room_members (uid)";
+    /**
+     * Used to join a user to a thread
+     */
+    private static final String JOIN = "INSERT INTO room_members (tid, uid) VALUES (?, ?)";
+    /**
+     * Used to remove a user from a thread
+     */
+    private static final String LEAVE = "DELETE FROM room_members WHERE tid = ? AND uid = ?";
+    /**
+     * Used to split the table into ranges of thread ids
+     */
+    private static final String GET_RANGE = "SELECT MIN(tid), MAX(tid) FROM room_members";
+    /**
+     * Used to read a range of the table; a range scan of the primary key, so the rows of a thread come together
+     */
+    private static final String GET_MEMBERS = "SELECT tid, uid FROM room_members WHERE tid BETWEEN ? AND ? ORDER BY tid";
+
+    /**
+     * Number of rows inserted with a single JDBC batch while the table is filled
+     */
+    private static final int FILL_BATCH = 1024;
+
+    private final ConnectionPool readPool;
+    private final ConnectionPool writePool;
+
+    /**
+     * Creates a new table
+     *
+     * @param readPool  of connections that the members are loaded on
+     * @param writePool of connections that the members are written on
+     */
+    public MembershipTable(ConnectionPool readPool, ConnectionPool writePool) {
+        this.readPool = readPool;
+        this.writePool = writePool;
+    }
+
+    /**
+     * Loads every member of every thread. If the database doesn't have the table yet, it's created and filled
+     * with everyone who has posted in each thread
+     *
+     * @param members that the rows are joined to
+     * @param store   of the messages that an older database derives the members from
+     * @throws IOException if the members could not be loaded
+     */
+    public void load(RoomMembers members, MessageStore store) throws IOException {
+        try {
+            if (!exists()) {
+                store.loadMembers(members);
+                create(members);
+                return;
+            }
+
+            int[] range = range();
+            if (range != null) loadInParallel(members, range[0], range[1]);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Joins a user to a thread
+     *
+     * @param threadID of the thread
+     * @param userID   of the user
+     * @throws SQLException if the row could not be inserted, e.g. because the user is a member already
+     */
+    public void join(int threadID, int userID) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = writePool.acquire()) {
+            PreparedStatement join = connection.prepare(JOIN);
+            join.setInt(1, threadID);
+            join.setInt(2, userID);
+            join.executeUpdate();
+        }
+    }
+
+    /**
+     * Removes a user from a thread
+     *
+     * @param threadID of the thread
+     * @param userID   of the user
+     * @throws SQLException if the row could not be deleted
+     */
+    public void leave(int threadID, int userID) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = writePool.acquire()) {
+            PreparedStatement leave = connection.prepare(LEAVE);
+            leave.setInt(1, threadID);
+            leave.setInt(2, userID);
+            leave.executeUpdate();
+        }
+    }
+
+    /**
+     * Checks whether the database has the table
+     *
+     * @return true if the table exists
+     * @throws SQLException if the database could not be asked
+     */
+    private boolean exists() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire();
+             ResultSet rs = connection.connection().getMetaData().getTables(null, null, "room_members", null)) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Creates the table and fills it with the members that were derived from the messages,
+     * all in a single transaction
+     *
+     * @param members to be inserted
+     * @throws SQLException if the table could not be created or filled
+     */
+    private void create(RoomMembers members) throws SQLException {
+        try (ConnectionPool.PooledConnection pooled = writePool.acquire()) {
+            Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            try (Statement ddl = connection.createStatement()) {
+                ddl.execute(CREATE_TABLE);
+                ddl.execute(CREATE_INDEX);
+
+                PreparedStatement join = pooled.prepare(JOIN);
+                int batched = 0;
+                for (int threadID : members.rooms()) {
+                    for (int userID : members.membersOf(threadID).toArray()) {
+                        join.setInt(1, threadID);
+                        join.setInt(2, userID);
+                        join.addBatch();
+                        if (++batched % FILL_BATCH == 0) join.executeBatch();
+                    }
+                }
+                join.executeBatch();
+                connection.commit();
+                System.out.println("Created the room_members table with " + batched + " members");
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Returns the lowest and the highest thread id in the table
+     *
+     * @return the range of the thread ids; null if the table is empty
+     * @throws SQLException if the table could not be read
+     */
+    private int[] range() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire();
+             ResultSet rs = connection.prepare(GET_RANGE).executeQuery()) {
+            if (!rs.next()) return null;
+
+            int lowest = rs.getInt(1);
+            //MIN of an empty table is NULL, which is read as 0
+            return rs.wasNull() ? null : new int[]{lowest, rs.getInt(2)};
+        }
+    }
+
+    /**
+     * Loads the members by ranges of thread ids, each read on its own connection
+     *
+     * @param members that the rows are joined to
+     * @param lowest  thread id in the table
+     * @param highest thread id in the table
+     * @throws SQLException if a range could not be read
+     */
+    private void loadInParallel(RoomMembers members, int lowest, int highest) throws SQLException {
+        long span = (long) highest - lowest + 1;
+        int parts = (int) Math.min(span, Math.min(readPool.size(), Runtime.getRuntime().availableProcessors()));
+        long step = (span + parts - 1) / parts;
+
+        List<Callable<Void>> ranges = new ArrayList<>(parts);
+        for (long from = lowest; from <= highest; from += step) {
+            int first = (int) from;
+            int last = (int) Math.min(from + step - 1, highest);
+            ranges.add(() -> {
+                loadRange(members, first, last);
+                return null;
+            });
+        }
+
+        ExecutorService loaders = Executors.newFixedThreadPool(ranges.size());
+        try {
+            for (Future<Void> loaded : loaders.invokeAll(ranges)) loaded.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while loading the members", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException(e.getCause());
+        } finally {
+            loaders.shutdown();
+        }
+    }
+
+    /**
+     * Loads the members of a range of thread ids, building the members of each thread at once
+     *
+     * @param members that the rows are joined to
+     * @param first   thread id of the range
+     * @param last    thread id of the range
+     * @throws SQLException if the range could not be read
+     */
+    private void loadRange(RoomMembers members, int first, int last) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire()) {
+            PreparedStatement getMembers = connection.prepare(GET_MEMBERS);
+            getMembers.setInt(1, first);
+            getMembers.setInt(2, last);
+            try (ResultSet rs = getMembers.executeQuery()) {
+                RoomMembers.Loader loader = members.loader();
+                while (rs.next()) {
+                    loader.add(rs.getInt(1), rs.getInt(2));
+                }
+                loader.finish();
+            }
+        }
+    }
+}
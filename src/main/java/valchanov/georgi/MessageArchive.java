@@ -0,0 +1,250 @@
+package valchanov.georgi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the old messages of the chat threads in compressed files, out of the table that the live messages
+ * are saved to.<br>
+ * The messages of a thread are partitioned by the month (in UTC) that they were received in: every thread has a
+ * directory named after its id, with gzip segments for each month that are named after the month and the ids of
+ * their oldest and newest messages, e.g. <code>42/2024-03-8432716840960-8437011808256.gz</code>. A segment is
+ * the number of messages followed by the messages from the oldest to the newest one, each as its id, its date,
+ * its sender id and its contents in UTF-8.
+ * <p>
+ * Writing is idempotent: messages that are archived again, because the archiver stopped before it deleted them
+ * from the table, land in the same segment, which then keeps every message it had. A message that still ends up
+ * in two segments of a month is read only once
+ * <p>
+ * The history of a thread is read from the segment with the newest messages down, and only the newest messages
+ * of a segment that a page could still take are kept, so a page only decompresses the segments that it reaches
+ * into and holds about a page of messages at a time
+ */
+public class MessageArchive {
+
+    private static final String SEGMENT_SUFFIX = ".gz";
+
+    /**
+     * Directory of the threads' directories
+     */
+    private final Path directory;
+
+    /**
+     * Creates a new archive, creating its directory if it doesn't exist yet
+     *
+     * @param directory of the archive
+     * @throws IOException if the directory could not be created
+     */
+    public MessageArchive(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the month that a message was received in
+     *
+     * @param messageID of the message
+     * @return the month of the message in UTC
+     */
+    public static YearMonth monthOf(long messageID) {
+        return YearMonth.from(Instant.ofEpochMilli(MessageIdGenerator.timeOf(messageID)).atOffset(ZoneOffset.UTC));
+    }
+
+    /**
+     * Returns the smallest id that a message received in a month could have
+     *
+     * @param month in UTC
+     * @return the first id of the month
+     */
+    public static long firstOf(YearMonth month) {
+        return MessageIdGenerator.firstAt(month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli());
+    }
+
+    /**
+     * Writes the messages of a thread from a single month to their segment, keeping the messages that the segment
+     * already has if it exists.
+     * The segment is synced to the disk before it shows up under its name, so a crash never leaves half of one
+     *
+     * @param threadID of the thread
+     * @param month    that the messages were received in
+     * @param messages from the oldest to the newest one
+     * @throws IOException if the segment could not be written
+     */
+    public synchronized void write(int threadID, YearMonth month, List<StoredMessage> messages) throws IOException {
+        Path room = directory.resolve(Integer.toString(threadID));
+        Files.createDirectories(room);
+
+        String name = name(month, messages.get(0).getMessageID(), messages.get(messages.size() - 1).getMessageID());
+        Path segment = room.resolve(name);
+        Path temporary = room.resolve(name + ".tmp");
+
+        if (Files.exists(segment)) {
+            //the messages were archived before, but may not have been deleted from the table at the time
+            List<StoredMessage> merged = new ArrayList<>(messages);
+            merged.addAll(read(threadID, segment, Long.MAX_VALUE, Integer.MAX_VALUE));
+            merged.sort(Comparator.comparingLong(StoredMessage::getMessageID));
+            messages = distinct(merged);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(temporary))))) {
+            out.writeInt(messages.size());
+            for (StoredMessage message : messages) {
+                byte[] contents = message.getContents() == null ? new byte[0] : message.getContents().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(message.getMessageID());
+                out.writeLong(message.getDate());
+                out.writeInt(message.getSenderID());
+                out.writeInt(contents.length);
+                out.write(contents);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, segment, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Passes the latest archived messages of a thread that were received before a message to a consumer,
+     * from the newest to the oldest one
+     *
+     * @param threadID of the thread
+     * @param before   id of the message that the messages have smaller ids than
+     * @param limit    maximum number of messages
+     * @param consumer of the messages
+     * @throws IOException if a segment could not be read
+     */
+    public void history(int threadID, long before, int limit, Consumer<StoredMessage> consumer) throws IOException {
+        Path room = directory.resolve(Integer.toString(threadID));
+        if (limit <= 0 || !Files.isDirectory(room)) return;
+
+        //the segments that have messages older than the message, the one with the newest messages first
+        List<Segment> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(room, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                Segment segment = new Segment(file);
+                if (segment.oldest < before) segments.add(segment);
+            }
+        }
+        segments.sort(Comparator.comparingLong((Segment segment) -> segment.newest).reversed());
+
+        //segments can overlap, so a message is only passed on once every segment that could have a newer one is read
+        PriorityQueue<StoredMessage> pending = new PriorityQueue<>(
+                Comparator.comparingLong(StoredMessage::getMessageID).reversed());
+        int next = 0;
+        int sent = 0;
+        long previous = before;
+        while (sent < limit) {
+            while (next < segments.size()
+                    && (pending.isEmpty() || segments.get(next).newest >= pending.peek().getMessageID())) {
+                pending.addAll(read(threadID, segments.get(next++).file, before, limit - sent));
+            }
+
+            StoredMessage message = pending.poll();
+            if (message == null) return;
+            //a message that is in two segments comes out of the queue twice in a row
+            if (message.getMessageID() == previous) continue;
+
+            previous = message.getMessageID();
+            consumer.accept(message);
+            sent++;
+        }
+    }
+
+    /**
+     * Reads the newest messages of a segment that were received before a message
+     *
+     * @param threadID of the thread of the segment
+     * @param segment  to be read
+     * @param before   id of the message that the messages have smaller ids than
+     * @param newest   maximum number of messages to be kept
+     * @return the newest messages that were received before the message, from the oldest to the newest one
+     * @throws IOException if the segment could not be read
+     */
+    private static ArrayDeque<StoredMessage> read(int threadID, Path segment, long before, int newest) throws IOException {
+        ArrayDeque<StoredMessage> older = new ArrayDeque<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(segment))))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long messageID = in.readLong();
+                //the messages of a segment are in the order of their ids
+                if (messageID >= before) break;
+
+                long date = in.readLong();
+                int senderID = in.readInt();
+                byte[] contents = new byte[in.readInt()];
+                in.readFully(contents);
+                if (older.size() == newest) older.removeFirst();
+                older.addLast(new StoredMessage(messageID, threadID, senderID, date, new String(contents, StandardCharsets.UTF_8)));
+            }
+        }
+        return older;
+    }
+
+    /**
+     * Drops the repeated messages from sorted messages
+     *
+     * @param messages sorted by their ids
+     * @return the messages with a single message for each id
+     */
+    private static List<StoredMessage> distinct(List<StoredMessage> messages) {
+        List<StoredMessage> distinct = new ArrayList<>(messages.size());
+        for (StoredMessage message : messages) {
+            if (distinct.isEmpty() || distinct.get(distinct.size() - 1).getMessageID() != message.getMessageID())
+                distinct.add(message);
+        }
+        return distinct;
+    }
+
+    /**
+     * Returns the name of a segment
+     *
+     * @param month  of the segment
+     * @param oldest id of the oldest message of the segment
+     * @param newest id of the newest message of the segment
+     * @return the name of the segment's file
+     */
+    private static String name(YearMonth month, long oldest, long newest) {
+        return month + "-" + oldest + "-" + newest + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * A segment of a thread with the ids of its oldest and newest messages, as found in its name
+     */
+    private static final class Segment {
+        final Path file;
+        final long oldest;
+        final long newest;
+
+        Segment(Path file) {
+            this.file = file;
+            String name = file.getFileName().toString();
+            int month = name.indexOf('-', name.indexOf('-') + 1);
+            int last = name.lastIndexOf('-');
+            oldest = Long.parseLong(name.substring(month + 1, last));
+            newest = Long.parseLong(name.substring(last + 1, name.length() - SEGMENT_SUFFIX.length()));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package valchanov.georgi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every relayed message a unique 64 bit id as soon as it's received.<br>
+ * An id is the time in milliseconds since the start of 2020 (41 bits), followed by the id of the server (10 bits)
+ * and a sequence within the millisecond (12 bits), so the ids of a server only ever grow and sort like the times
+ * the messages were received at. If more than 4096 messages are received within a millisecond, or the clock goes
+ * back, the ids carry on from the last one instead of repeating it
+ */
+public class MessageIdGenerator {
+
+    /**
+     * Largest id of a server
+     */
+    public static final int MAX_NODE = (1 << 10) - 1;
+
+    /**
+     * Start of 2020 in milliseconds since the epoch; the times of the ids are counted from it
+     */
+    private static final long EPOCH = 1_577_836_800_000L;
+
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /**
+     * Id of the server shifted into its place
+     */
+    private final long node;
+
+    /**
+     * The last id that was given out
+     */
+    private final AtomicLong last;
+
+    /**
+     * Creates a new generator
+     *
+     * @param node id of the server, unique among the servers that share a store
+     * @throws IllegalArgumentException if the id of the server doesn't fit in 10 bits
+     */
+    public MessageIdGenerator(int node) throws IllegalArgumentException {
+        if (node < 0 || node > MAX_NODE)
+            throw new IllegalArgumentException("The id of the server has to be between 0 and " + MAX_NODE);
+
+        this.node = (long) node << SEQUENCE_BITS;
+        this.last = new AtomicLong();
+    }
+
+    /**
+     * Returns a new id, greater than every id given out before
+     *
+     * @return the id of a message
+     */
+    public long next() {
+        long now = System.currentTimeMillis() - EPOCH;
+        while (true) {
+            long previous = last.get();
+            long time = Math.max(now, previous >>> TIME_SHIFT);
+            long sequence = time == previous >>> TIME_SHIFT ? (previous & SEQUENCE_MASK) + 1 : 0;
+            if (sequence > SEQUENCE_MASK) {
+                //the millisecond is used up, so the id borrows the next one
+                time++;
+                sequence = 0;
+            }
+
+            long id = time << TIME_SHIFT | node | sequence;
+            if (last.compareAndSet(previous, id)) return id;
+        }
+    }
+
+    /**
+     * Returns the time that a message with an id was received at
+     *
+     * @param id of a message
+     * @return the time in milliseconds since the epoch
+     */
+    public static long timeOf(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    /**
+     * Returns the smallest id that a message received at a time could have, so that the ids smaller than it
+     * belong to the messages received before that time
+     *
+     * @param time in milliseconds since the epoch
+     * @return the first id of the time
+     */
+    public static long firstAt(long time) {
+        return Math.max(0, time - EPOCH) << TIME_SHIFT;
+    }
+}
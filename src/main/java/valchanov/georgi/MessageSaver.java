@@ -0,0 +1,269 @@
+package valchanov.georgi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Saves the chat messages to a {@link MessageStore} in the background.<br>
+ * Messages are queued by the readers and appended by this thread in batches, each batch in a single transaction.
+ * A batch is written once it's full or once the first message in it has waited for the flush delay, so a busy
+ * server commits many messages at once while a quiet one still saves every message right away.
+ */
+public class MessageSaver extends ShutDownThread {
+
+    /**
+     * When a relayed message is sent on to its receivers
+     */
+    public enum Durability {
+        /**
+         * Once the message is committed to the database
+         */
+        AFTER_COMMIT,
+        /**
+         * Once the message is queued for saving; a message could be lost if the server crashes before it's saved
+         */
+        AFTER_ENQUEUE
+    }
+
+    /**
+     * Maximum number of messages waiting to be saved; further messages are refused until there's room again
+     */
+    private static final int QUEUE_CAPACITY = 1 << 16;
+
+    /**
+     * How long the thread waits for a message before it checks if it's still running
+     */
+    private static final long IDLE_WAIT = 100;
+
+    /**
+     * Where the messages are kept
+     */
+    private final MessageStore store;
+
+    /**
+     * Messages waiting to be saved
+     */
+    private final BlockingQueue<PendingSave> queue;
+
+    /**
+     * Maximum number of messages in a batch
+     */
+    private int batchSize;
+
+    /**
+     * Time in nanoseconds that a batch waits to be filled before it's written
+     */
+    private long flushDelay;
+
+    /**
+     * Number of saved messages and of written batches
+     */
+    private long saved;
+    private long batches;
+
+    /**
+     * Number of messages refused since too many were waiting to be saved
+     */
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * Creates a new saver
+     *
+     * @param store that the messages are appended to
+     */
+    public MessageSaver(MessageStore store) {
+        this.store = store;
+        this.queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        this.batchSize = 256;
+        this.flushDelay = TimeUnit.MILLISECONDS.toNanos(5);
+        this.setName("Message saver");
+    }
+
+    /**
+     * Specifies how the messages are batched.
+     * Has to be called before the thread is started
+     *
+     * @param batchSize   maximum number of messages in a batch
+     * @param flushMillis time in milliseconds that a batch waits to be filled before it's written
+     * @throws IllegalArgumentException if the batch size is not positive or the time is negative
+     */
+    public void setBatching(int batchSize, long flushMillis) throws IllegalArgumentException {
+        if (batchSize < 1 || flushMillis < 0)
+            throw new IllegalArgumentException("A batch has to hold at least one message and can't wait for a negative time");
+
+        this.batchSize = batchSize;
+        this.flushDelay = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+    }
+
+    /**
+     * Queues a message to be saved. Never waits, so it could be called on a selection thread:
+     * if too many messages are waiting already, the message is refused.
+     * The callbacks are called on the saver's thread, in the order the messages were queued,
+     * except for a refused message, whose failure is reported on the calling thread before returning
+     *
+     * @param messageID that the message was given when it was received
+     * @param senderID  of the sender
+     * @param threadID  of the thread
+     * @param date      of the message
+     * @param contents  of the message
+     * @param onSaved   called once the message is committed; could be null
+     * @param onFailed  called if the message could not be saved; could be null
+     * @return true if the message was queued; false if it was refused
+     */
+    public boolean save(long messageID, int senderID, int threadID, long date, String contents, Runnable onSaved, Consumer<IOException> onFailed) {
+        PendingSave pending = new PendingSave(messageID, senderID, threadID, date, contents, onSaved, onFailed);
+        if (!isRunning()) {
+            pending.fail(new IOException("The messages are no longer being saved"));
+            return false;
+        }
+
+        if (!queue.offer(pending)) {
+            refused.incrementAndGet();
+            pending.fail(new IOException("Too many messages are waiting to be saved"));
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        List<PendingSave> batch = new ArrayList<>(batchSize);
+        try {
+            //once shut down, the messages that are already queued are still saved
+            while (isRunning() || !queue.isEmpty()) {
+                collect(batch);
+                if (batch.isEmpty()) continue;
+
+                write(batch);
+                batch.clear();
+            }
+        } finally {
+            //whatever couldn't be saved is reported as failed
+            for (PendingSave pending : batch) pending.fail(new IOException("The message saver has stopped"));
+            PendingSave pending;
+            while ((pending = queue.poll()) != null) pending.fail(new IOException("The message saver has stopped"));
+
+            System.out.println("Messages saved: " + saved + " in " + batches + " batches, refused: " + refused.get());
+        }
+    }
+
+    /**
+     * Collects the next batch of messages. Waits for the first message and then until either the batch is full
+     * or the flush delay has passed
+     *
+     * @param batch that the messages are put in
+     */
+    private void collect(List<PendingSave> batch) {
+        try {
+            PendingSave first = isRunning() ? queue.poll(IDLE_WAIT, TimeUnit.MILLISECONDS) : queue.poll();
+            if (first == null) return;
+            batch.add(first);
+
+            long deadline = System.nanoTime() + flushDelay;
+            while (batch.size() < batchSize) {
+                //take whatever is already there without waiting
+                if (queue.drainTo(batch, batchSize - batch.size()) > 0) continue;
+
+                long left = deadline - System.nanoTime();
+                PendingSave next = left > 0 && isRunning() ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+                if (next == null) break;
+                batch.add(next);
+            }
+        } catch (InterruptedException e) {
+            //the thread is shutting down; write what has been collected
+        }
+    }
+
+    /**
+     * Writes a batch in a single transaction. If the batch fails, its messages are saved one by one
+     * so that a single bad message doesn't take the others with it
+     *
+     * @param batch of messages to be saved
+     */
+    private void write(List<PendingSave> batch) {
+        List<StoredMessage> messages = new ArrayList<>(batch.size());
+        for (PendingSave pending : batch) messages.add(pending.message);
+
+        try {
+            store.append(messages);
+        } catch (IOException e) {
+            if (batch.size() > 1) writeOneByOne(batch);
+            else batch.get(0).fail(e);
+            return;
+        }
+
+        saved += batch.size();
+        batches++;
+        for (PendingSave pending : batch) pending.succeed();
+    }
+
+    /**
+     * Saves the messages of a failed batch each in its own transaction
+     *
+     * @param batch of messages to be saved
+     */
+    private void writeOneByOne(List<PendingSave> batch) {
+        for (PendingSave pending : batch) {
+            try {
+                store.append(Collections.singletonList(pending.message));
+            } catch (IOException e) {
+                pending.fail(e);
+                continue;
+            }
+
+            saved++;
+            batches++;
+            pending.succeed();
+        }
+    }
+
+    /**
+     * A message waiting to be saved, together with what is done once it's saved
+     */
+    private class PendingSave {
+        private final StoredMessage message;
+        private final Runnable onSaved;
+        private final Consumer<IOException> onFailed;
+
+        /**
+         * True once the message was either saved or failed, so that it's only reported once
+         */
+        private boolean done;
+
+        PendingSave(long messageID, int senderID, int threadID, long date, String contents, Runnable onSaved, Consumer<IOException> onFailed) {
+            this.message = new StoredMessage(messageID, threadID, senderID, date, contents);
+            this.onSaved = onSaved;
+            this.onFailed = onFailed;
+        }
+
+        void succeed() {
+            if (done) return;
+            done = true;
+            if (onSaved == null) return;
+            try {
+                onSaved.run();
+            } catch (RuntimeException e) {
+                //a failing callback, e.g. for a client that has just disconnected, doesn't stop the saving
+                logger().log(e);
+            }
+        }
+
+        void fail(IOException e) {
+            if (done) return;
+            done = true;
+            if (onFailed == null) return;
+            try {
+                onFailed.accept(e);
+            } catch (RuntimeException e1) {
+                logger().log(e1);
+            }
+        }
+    }
+}
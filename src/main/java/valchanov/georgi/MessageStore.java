@@ -0,0 +1,43 @@
+package valchanov.georgi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the messages of the chat threads.<br>
+ * The messages are only ever appended, and only by the {@link MessageSaver}, while they could be read by any thread.
+ * Every message is kept by the id it was given when it was received, which also orders the history of a thread
+ */
+public interface MessageStore extends Closeable {
+
+    /**
+     * Appends a batch of messages. Either all of the messages are kept once it returns, or none of them
+     *
+     * @param batch of messages to be appended
+     * @throws IOException if the messages could not be kept
+     */
+    void append(List<StoredMessage> batch) throws IOException;
+
+    /**
+     * Passes the latest messages of a thread that were received before a message to a consumer, one at a time
+     * and from the newest to the oldest one, so that a page of the history is never held as a whole
+     *
+     * @param threadID of the thread
+     * @param before   id of the message that the messages have smaller ids than
+     * @param limit    maximum number of messages
+     * @param consumer of the messages
+     * @throws IOException if the messages could not be read
+     */
+    void history(int threadID, long before, int limit, Consumer<StoredMessage> consumer) throws IOException;
+
+    /**
+     * Joins everyone who has ever posted in a thread to the members of the thread.
+     * Used to fill the membership table of a database that was set up before the table existed
+     *
+     * @param members that the posters are joined to
+     * @throws IOException if the messages could not be read
+     */
+    void loadMembers(RoomMembers members) throws IOException;
+}
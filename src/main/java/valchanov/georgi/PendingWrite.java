@@ -0,0 +1,76 @@
+package valchanov.georgi;
+
+import valchanov.georgi.messages.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+
+/**
+ * The buffers of a batch of messages that are being written to a connection with a gathering write.<br>
+ * A batch could take more than one write if the connection can't take all of it at once.
+ * Each message is released as soon as all of its buffers have been written
+ */
+class PendingWrite {
+
+    /**
+     * Buffers of the messages in the order they are written
+     */
+    private final ByteBuffer[] buffers;
+
+    /**
+     * The message that each buffer belongs to
+     */
+    private final Message[] owners;
+
+    /**
+     * Index of the first buffer that hasn't been fully written
+     */
+    private int first;
+
+    /**
+     * Creates a new batch of buffers to be written
+     *
+     * @param buffers of the messages
+     * @param owners  the message of each buffer
+     */
+    PendingWrite(List<ByteBuffer> buffers, List<Message> owners) {
+        this.buffers = buffers.toArray(new ByteBuffer[0]);
+        this.owners = owners.toArray(new Message[0]);
+    }
+
+    /**
+     * Writes as much of the batch as the channel could take
+     *
+     * @param channel to be written to
+     * @return true if the whole batch has been written
+     * @throws IOException if the writing fails
+     */
+    boolean writeTo(GatheringByteChannel channel) throws IOException {
+        if (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+        }
+
+        //release the messages that have been fully written
+        while (first < buffers.length && !buffers[first].hasRemaining()) {
+            if (first + 1 == buffers.length || owners[first + 1] != owners[first]) {
+                owners[first].release();
+            }
+            first++;
+        }
+        return first == buffers.length;
+    }
+
+    /**
+     * Releases the messages that haven't been fully written, e.g. because the connection was closed
+     */
+    void release() {
+        for (int i = first; i < buffers.length; i++) {
+            if (i + 1 == buffers.length || owners[i + 1] != owners[i]) {
+                owners[i].release();
+            }
+        }
+        first = buffers.length;
+    }
+}
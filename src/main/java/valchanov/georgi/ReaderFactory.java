@@ -9,8 +9,11 @@ import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.sql.*;
-import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Creates new {@link Runnable} objects that handle incoming messages from {@link SocketChannel}s
@@ -18,30 +21,88 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class ReaderFactory extends ShutDownThread {
 
     /**
-     * Used when a new thread is created
+     * Number of messages in a page of history when the client doesn't ask for a number
      */
-    private static String helloMess = "Hello";
-    private final PreparedStatement registerUser;
+    private static final int DEFAULT_HISTORY_PAGE = 50;
     /**
-     * Used to retrieve a client id from the database
+     * Most messages in a page of history
      */
-    private final PreparedStatement getID;
+    private static final int MAX_HISTORY_PAGE = 200;
     /**
-     * Used to retrieve the client id's of participants in a chat thread
+     * Number of locks that the chat threads share for relaying; a power of two
      */
-    private final PreparedStatement getParticipants;
+    private static final int INGRESS_STRIPES = 64;
     /**
-     * Used to save a new message to the database
+     * Used to register a new user in the database
      */
-    private final PreparedStatement saveMessage;
+    private static final String REGISTER_USER = "INSERT INTO  users (`password`) VALUES (?)";
+    /**
+     * Used to retrieve a client id from the database
+     */
+    private static final String GET_ID = "SELECT uid FROM users where uid= ? AND password = ?";
     /**
      * Used to create a new chat thread in the database
      */
-    private final PreparedStatement createThread;
+    private static final String CREATE_THREAD = "INSERT INTO rooms (`tname`) VALUES (?)";
     /**
      * Used to retrieve a thread's id
      */
-    private final PreparedStatement getThreadID;
+    private static final String GET_THREAD_ID = "SELECT tid FROM rooms WHERE tname = ?";
+    /**
+     * Connections to the database. Each reader takes one for as long as it queries the database,
+     * so the queries of different readers run in parallel
+     */
+    private final ConnectionPool readPool;
+    /**
+     * Connections that write to the database; the same as the reading ones unless the database has a single writer
+     */
+    private final ConnectionPool writePool;
+    /**
+     * Where the messages of the threads are kept
+     */
+    private final MessageStore store;
+    /**
+     * The messages that were moved out of the store; null if they never are
+     */
+    private MessageArchive archive;
+    /**
+     * Saves the messages in the background, so that relaying a message doesn't wait for the store
+     */
+    private final MessageSaver saver;
+    /**
+     * When a relayed message is sent on to its receivers
+     */
+    private MessageSaver.Durability durability;
+    /**
+     * The recently checked credentials, so that reconnecting clients don't query the database
+     */
+    private CredentialCache credentials;
+    /**
+     * The latest messages of the active chat threads, so that their recent history isn't read from the store
+     */
+    private RecentMessages recent;
+    /**
+     * The id of each chat thread by its name, so that joining an existing thread doesn't query the database
+     */
+    private RoomDirectory rooms;
+    /**
+     * Gives each relayed message its id as soon as it's received
+     */
+    private MessageIdGenerator ids;
+    /**
+     * Held while a relayed message gets its id and is queued to be saved, the lock of the message's thread, so the
+     * messages of a thread reach the saver, the message log and the recent messages in the order of their ids
+     * while the messages of other threads are relayed in parallel
+     */
+    private final Lock[] ingress = new Lock[INGRESS_STRIPES];
+    /**
+     * The members of each chat thread, so that relaying a message doesn't query the database
+     */
+    private final RoomMembers members;
+    /**
+     * The members of each chat thread in the database, so that they're kept across restarts
+     */
+    private final MembershipTable membership;
     /**
      * Represents a mapping between a sender's id an mail box allocated for an identified user
      */
@@ -56,31 +117,101 @@ public class ReaderFactory extends ShutDownThread {
      */
     private MessageFactory messageFactory;
 
-    public ReaderFactory(Connection connection, MessageFactory factory) throws SQLException {
-        this.messageFactory = factory;
+    /**
+     * True if cheap messages are handled on the selection thread
+     */
+    private boolean inline;
 
-        // create the prepared statements
-        getParticipants = connection.prepareStatement("SELECT DISTINCT uid FROM messages WHERE tid = ? AND uid != ?");
-        saveMessage = connection.prepareStatement("INSERT INTO messages VALUES(?,?,?,?)");
-        getID = connection.prepareStatement("SELECT uid FROM users where uid= ? AND password = ?");
+    /**
+     * Creates a new reader factory that reads from and writes to the database on the same connections
+     *
+     * @param pool    of connections to the database
+     * @param factory for creating new messages
+     * @throws IOException if the members of the rooms could not be read
+     */
+    public ReaderFactory(ConnectionPool pool, MessageFactory factory) throws IOException {
+        this(pool, pool, factory);
+    }
 
-        createThread = connection.prepareStatement("INSERT INTO rooms (`name`) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
-        getThreadID = connection.prepareStatement("SELECT tid FROM rooms WHERE name = ?");
+    /**
+     * Creates a new reader factory that reads from and writes to the database on separate connections
+     *
+     * @param readPool  of connections that only read from the database
+     * @param writePool of connections that write to the database
+     * @param factory   for creating new messages
+     * @throws IOException if the messages table could not be upgraded or the members of the rooms could not be read
+     */
+    public ReaderFactory(ConnectionPool readPool, ConnectionPool writePool, MessageFactory factory) throws IOException {
+        this(readPool, writePool, SqlMessageStore.open(readPool, writePool), factory);
+    }
 
-        registerUser = connection.prepareStatement("INSERT INTO  users (`password`) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
+    /**
+     * Creates a new reader factory that keeps the messages of the threads in a store of its own,
+     * while the users and the threads are kept in the database
+     *
+     * @param readPool  of connections that only read from the database
+     * @param writePool of connections that write to the database
+     * @param store     of the messages
+     * @param factory   for creating new messages
+     * @throws IOException if the members of the rooms could not be read
+     */
+    public ReaderFactory(ConnectionPool readPool, ConnectionPool writePool, MessageStore store, MessageFactory factory) throws IOException {
+        this.messageFactory = factory;
+        this.readPool = readPool;
+        this.writePool = writePool;
+        this.store = store;
+
+        members = new RoomMembers();
+        membership = new MembershipTable(readPool, writePool);
+        membership.load(members, store);
+
+        saver = new MessageSaver(store);
+        durability = MessageSaver.Durability.AFTER_COMMIT;
+        credentials = new CredentialCache(CredentialCache.DEFAULT_SIZE, CredentialCache.DEFAULT_TIME_TO_LIVE,
+                CredentialCache.DEFAULT_FAILURE_TIME_TO_LIVE);
+        recent = new RecentMessages(RecentMessages.DEFAULT_PER_ROOM, RecentMessages.DEFAULT_ROOMS, RecentMessages.DEFAULT_IDLE_TIME);
+        rooms = new RoomDirectory(RoomDirectory.DEFAULT_SIZE);
+        ids = new MessageIdGenerator(0);
+        for (int i = 0; i < INGRESS_STRIPES; i++) {
+            ingress[i] = new ReentrantLock();
+        }
     }
 
-    public static ReaderFactory newInstance(String driver, String url, MessageFactory factory) throws ClassNotFoundException, SQLException {
-        Class.forName(driver);
-        Connection connection = DriverManager.getConnection(url);
-        return new ReaderFactory(connection, factory);
+    public static ReaderFactory newInstance(String driver, String url, MessageFactory factory) throws ClassNotFoundException, IOException {
+        return new ReaderFactory(new ConnectionPool(driver, url, null, null,
+                ConnectionPool.DEFAULT_SIZE, ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT), factory);
     }
 
-    public static ReaderFactory newInstance(String drivers, String url, String user, String password, MessageFactory factory) throws ClassNotFoundException, SQLException {
-        Class.forName(drivers);
-        Connection connection = DriverManager.getConnection(url, user, password);
+    public static ReaderFactory newInstance(String drivers, String url, String user, String password, MessageFactory factory) throws ClassNotFoundException, IOException {
+        return new ReaderFactory(new ConnectionPool(drivers, url, user, password,
+                ConnectionPool.DEFAULT_SIZE, ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT), factory);
+    }
 
-        return new ReaderFactory(connection, factory);
+    /**
+     * Returns the store of the messages, so that it could be closed with the server
+     *
+     * @return the store of the messages
+     */
+    MessageStore store() {
+        return store;
+    }
+
+    /**
+     * Returns the pool of the connections that read from the database, so that it could be closed with the server
+     *
+     * @return the pool of the reading connections
+     */
+    ConnectionPool readPool() {
+        return readPool;
+    }
+
+    /**
+     * Returns the pool of the connections that write to the database, so that it could be closed with the server
+     *
+     * @return the pool of the writing connections
+     */
+    ConnectionPool writePool() {
+        return writePool;
     }
 
     /**
@@ -93,60 +224,295 @@ public class ReaderFactory extends ShutDownThread {
     }
 
     /**
-     * Creates a new {@link Runnable} that acts as a message reader
+     * Creates a new session for a newly registered connection
+     *
+     * @param selectionThread watching over the connection
+     * @return a new session with its own message decoder
+     */
+    public Session newSession(SelectionThread selectionThread) {
+        return new Session(messageFactory.newDecoder(), selectionThread);
+    }
+
+    /**
+     * Specifies when a relayed message is sent on to its receivers
+     *
+     * @param durability of the relayed messages
+     */
+    void setDurability(MessageSaver.Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Makes the history of a thread fall through to an archive once the store has no older messages
+     *
+     * @param archive that the old messages are moved to
+     */
+    void setArchive(MessageArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Specifies how the recently checked credentials are kept
+     *
+     * @param credentials cache of the recently checked credentials
+     */
+    void setCredentialCache(CredentialCache credentials) {
+        this.credentials = credentials;
+    }
+
+    /**
+     * Returns the cache of the recently checked credentials, so that its use could be reported with the server
+     *
+     * @return the cache of the recently checked credentials
+     */
+    CredentialCache credentialCache() {
+        return credentials;
+    }
+
+    /**
+     * Specifies how the latest messages of the active chat threads are kept in memory
+     *
+     * @param recent cache of the latest messages
+     */
+    void setRecentMessages(RecentMessages recent) {
+        this.recent = recent;
+    }
+
+    /**
+     * Returns the cache of the latest messages, so that it could be cleared with the server
+     *
+     * @return the cache of the latest messages
+     */
+    RecentMessages recentMessages() {
+        return recent;
+    }
+
+    /**
+     * Specifies how the ids of the chat threads are remembered by their names
+     *
+     * @param rooms directory of the chat threads
+     */
+    void setRoomDirectory(RoomDirectory rooms) {
+        this.rooms = rooms;
+    }
+
+    /**
+     * Specifies what gives the relayed messages their ids
+     *
+     * @param ids generator of the ids of this server
+     */
+    void setMessageIdGenerator(MessageIdGenerator ids) {
+        this.ids = ids;
+    }
+
+    /**
+     * Returns the directory of the chat threads, so that its use could be reported with the server
+     *
+     * @return the directory of the chat threads
+     */
+    RoomDirectory roomDirectory() {
+        return rooms;
+    }
+
+    /**
+     * Returns the thread saving the messages, so that it could be set up, started and shut down with the server
+     *
+     * @return the thread saving the messages
+     */
+    MessageSaver saver() {
+        return saver;
+    }
+
+    /**
+     * Specifies whether cheap messages are handled right on the selection thread.
+     * When turned on, the selection thread reads and decodes the messages itself and only hands off to a worker
+     * the reads that have a message needing the database
+     *
+     * @param inline true for handling cheap messages on the selection thread
+     */
+    void setInline(boolean inline) {
+        this.inline = inline;
+    }
+
+    /**
+     * Creates a new {@link Runnable} that acts as a message reader.
+     * The reader handles every message that was completed by the read, in the order they were sent,
+     * and releases them once they're handled.
+     * <p>
+     * If the messages are handled inline, the reading is done right away. Null is returned if all of the received
+     * messages were handled as well, otherwise the returned reader handles all of them in order
      *
      * @param key    that is ready for reading
      * @param keyOps of the key
-     * @return a new {@link Runnable} that acts as a message reader
+     * @return a new {@link Runnable} that acts as a message reader; null if there's nothing left to be handled
      */
     public Runnable readFrom(final SelectionKey key, final int keyOps) {
+        if (!inline) {
+            return () -> {
+                Thread.currentThread().setName("Reading message:");
+
+                handleAll(key, receive(key));
+                resetOps(key, keyOps);
+            };
+        }
+
+        //decode on the selection thread and hand off only what needs the database
+        final List<Message> received = receive(key);
+        if (received.stream().allMatch(m -> isInline(m.getType()))) {
+            handleAll(key, received);
+            return null;
+        }
+
         return () -> {
             Thread.currentThread().setName("Reading message:");
 
-            SocketChannel socket = (SocketChannel) key.channel();
-            Message message = null;
+            handleAll(key, received);
+            resetOps(key, keyOps);
+        };
+    }
 
-            System.out.println("Reading from a channel");
-            try {
-                message = messageFactory.readFrom(socket);
-                //get the proper handler
-                switch (message.getType()) {
-                    case CONNECT:
-                        connectUser(key, message);
-                        break;
-                    case REGISTER:
-                        registerUser(key, message);
-                        break;
-                    case SEND:
-                        relayMessage(key, message);
-                        break;
-                    case NEW_THREAD:
-                        createThread(key, message);
-                        break;
-                    case DISCONNECT:
-                        disconnect(key, message);
-                        break;
-                    case UNKNOWN:
-                }
-            } catch (IOException | SQLException e) {
-                if (onReadError != null) onReadError.accept(key, message, e);
+    /**
+     * Reads the messages that have been completed on a key's channel.
+     * If the reading fails the client is disconnected
+     *
+     * @param key that is ready for reading
+     * @return the completed messages; empty if there are none or the reading failed
+     */
+    private List<Message> receive(SelectionKey key) {
+        System.out.println("Reading from a channel");
+        try {
+            Session session = Session.of(key);
+            //any traffic from the client shows it's still there
+            session.touch();
+            return session.decoder().readFrom((SocketChannel) key.channel());
+        } catch (IOException e) {
+            fail(key, null, e);
+            return Collections.emptyList();
+        }
+    }
 
-                //terminate the faulty socket
-                if (key.isValid()) {
-                    try {
-                        disconnect(key, e);
-                    } catch (IOException e1) {
-                        if (onReadError != null) onReadError.accept(key, message, e);
-                    }
+    /**
+     * Handles received messages in order and releases them afterwards.
+     * If handling a message fails the client is disconnected and the rest of the messages are dropped
+     *
+     * @param key      of the sender
+     * @param received messages of the sender
+     */
+    private void handleAll(SelectionKey key, List<Message> received) {
+        try {
+            for (Message m : received) {
+                try {
+                    handle(key, m);
+                } catch (IOException | SQLException e) {
+                    fail(key, m, e);
                 }
+
+                //the client has been disconnected
+                if (!key.isValid()) break;
+            }
+        } finally {
+            for (Message m : received) {
+                m.release();
             }
+        }
+    }
 
-            //reset the ops
-            if (key.isValid()) {
-                key.interestOps(key.interestOps() | keyOps);
-                key.selector().wakeup();
+    /**
+     * Reports an error with a client and terminates its socket
+     *
+     * @param key     of the client
+     * @param message that was being handled; null if none
+     * @param e       the error
+     */
+    private void fail(SelectionKey key, Message message, Exception e) {
+        if (onReadError != null) onReadError.accept(key, message, e);
+
+        //terminate the faulty socket
+        if (key.isValid()) {
+            try {
+                disconnect(key, e);
+            } catch (IOException e1) {
+                if (onReadError != null) onReadError.accept(key, message, e);
             }
-        };
+        }
+    }
+
+    /**
+     * Gives back the ops that were taken from a key while it was handed off to a worker
+     *
+     * @param key    that was handled
+     * @param keyOps of the key before it was handed off
+     */
+    private void resetOps(SelectionKey key, int keyOps) {
+        Session session = Session.of(key);
+        if (session != null && key.isValid()) {
+            session.selectionThread().addInterest(key, keyOps);
+        }
+    }
+
+    /**
+     * Returns true if a message type is cheap enough to be handled on the selection thread,
+     * i.e. it never waits for the database
+     *
+     * @param type of the message
+     * @return true if it could be handled inline
+     */
+    private boolean isInline(MessageType type) {
+        switch (type) {
+            case SEND:
+            case DISCONNECT:
+            case FAILURE:
+            case PING:
+            case PONG:
+            case UNKNOWN:
+                return true;
+            default:
+                //connecting, registering and creating threads query the database
+                //(relaying only queues the message for saving)
+                return false;
+        }
+    }
+
+    /**
+     * Passes a received message to the proper handler
+     *
+     * @param key     of the sender
+     * @param message that was received
+     * @throws IOException  if the sender could not be disconnected
+     * @throws SQLException If a database related error occurs
+     */
+    private void handle(SelectionKey key, Message message) throws IOException, SQLException {
+        //get the proper handler
+        switch (message.getType()) {
+            case CONNECT:
+                connectUser(key, message);
+                break;
+            case REGISTER:
+                registerUser(key, message);
+                break;
+            case SEND:
+                relayMessage(key, message);
+                break;
+            case NEW_THREAD:
+                createThread(key, message);
+                break;
+            case HISTORY:
+                sendHistory(key, message);
+                break;
+            case LEAVE:
+                leaveThread(key, message);
+                break;
+            case DISCONNECT:
+                disconnect(key, message);
+                break;
+            case PING:
+                pong(key);
+                break;
+            case PONG:
+                //the client is still there; the read itself has already been recorded
+                break;
+            case UNKNOWN:
+        }
     }
 
     /**
@@ -171,6 +537,50 @@ public class ReaderFactory extends ShutDownThread {
         key.channel().close();
     }
 
+    /**
+     * Checks whether a client that has gone quiet is still there by sending it a PING.
+     * Clients that haven't identified themselves have no mail box, so they're left to expire
+     *
+     * @param key of the quiet client
+     */
+    public void ping(SelectionKey key) {
+        Session session = Session.of(key);
+        if (session == null || session.mailBox() == null) return;
+
+        Message m = messageFactory.newInstance(MessageType.PING, -1, "", 0, "", "");
+        mailBoxes.putMessageInBox(key, m);
+        m.release();
+    }
+
+    /**
+     * Replies to a PING of a client
+     *
+     * @param key of the client
+     */
+    private void pong(SelectionKey key) {
+        Session session = Session.of(key);
+        if (session == null || session.mailBox() == null) return;
+
+        Message m = messageFactory.newInstance(MessageType.PONG, -1, "", 0, "", "");
+        mailBoxes.putMessageInBox(key, m);
+        m.release();
+    }
+
+    /**
+     * Disconnects a client that hasn't sent anything for too long and deallocates its resources
+     *
+     * @param key of the quiet client
+     */
+    public void expire(SelectionKey key) {
+        System.out.println("Disconnecting an idle client");
+        mailBoxes.removeMailBox(key);
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            if (onReadError != null) onReadError.accept(key, null, e);
+        }
+    }
+
     /**
      * Registers users by putting their name in the database
      *
@@ -181,7 +591,8 @@ public class ReaderFactory extends ShutDownThread {
         System.out.println("Registering a new user");
         int id;
         //create an entry of the user in the database
-        synchronized (registerUser) {
+        try (ConnectionPool.PooledConnection connection = writePool.acquire()) {
+            PreparedStatement registerUser = connection.prepare(REGISTER_USER, Statement.RETURN_GENERATED_KEYS);
             registerUser.setString(1, message.getPassword());
             registerUser.executeUpdate();
 
@@ -191,14 +602,19 @@ public class ReaderFactory extends ShutDownThread {
                 id = rs.getInt(1);
             }
         }
-        //now create a new ArrayDeque so that it gets attached to the selection key
-        key.attach(new ConcurrentLinkedQueue<>());
+        //whatever was known about an earlier user with the same id no longer holds
+        credentials.invalidate(id);
+        credentials.verified(id, message.getPassword());
+
+        //open the mail box of the client's session
+        mailBoxes.openMailBox(key);
         //create a new mailbox for the client and put it with the mail boxes
         mailBoxes.newMailBox(id, key);
 
         //sends a message to the client with their id
         Message m = messageFactory.newInstance(message.getType(), id, message.getPassword(), message.getThreadID(), message.getThreadName(), message.getContents());
         mailBoxes.putMessageInBox(id, m);
+        m.release();
     }
 
     /**
@@ -212,34 +628,53 @@ public class ReaderFactory extends ShutDownThread {
      */
     private void connectUser(SelectionKey key, Message message) throws SQLException {
         int id;
-        //now create a new ArrayDeque so that it gets attached to the selection key
-        key.attach(new ConcurrentLinkedQueue<>());
+        //open the mail box of the client's session
+        mailBoxes.openMailBox(key);
+
+        //a client that has recently connected, or failed to, is answered without the database
+        switch (credentials.check(message.getSenderID(), message.getPassword())) {
+            case VALID:
+                connected(key, message, message.getSenderID());
+                return;
+            case INVALID:
+                sendFailingMessage(key, "Unknown User; could not connect");
+                return;
+        }
 
         //get an id for the client
-        try {
-            synchronized (getID) {
-                System.out.println("id: " + message.getSenderID() + " password: " + message.getPassword());
-                getID.setInt(1, message.getSenderID());
-                getID.setString(2, message.getPassword());
-
-
-                //querying the database to see if the combination exist
-                try (ResultSet rs = getID.executeQuery()) {
-                    if (rs.isAfterLast()) {
-                        sendFailingMessage(key, "Unknown User; could not connect");
-                        return;
-                    } else {
-                        rs.next();
-                        id = rs.getInt(1);
-                    }
+        try (ConnectionPool.PooledConnection connection = readPool.acquire()) {
+            PreparedStatement getID = connection.prepare(GET_ID);
+            System.out.println("id: " + message.getSenderID() + " password: " + message.getPassword());
+            getID.setInt(1, message.getSenderID());
+            getID.setString(2, message.getPassword());
+
+
+            //querying the database to see if the combination exist
+            try (ResultSet rs = getID.executeQuery()) {
+                if (!rs.next()) {
+                    credentials.failed(message.getSenderID(), message.getPassword());
+                    sendFailingMessage(key, "Unknown User; could not connect");
+                    return;
                 }
+                id = rs.getInt(1);
             }
         } catch (IndexOutOfBoundsException e) {
             //In case the query fails or the client hasn't passed in the correct number of arguments
             throw new SQLException();
         }
+        credentials.verified(id, message.getPassword());
 
+        connected(key, message, id);
+    }
 
+    /**
+     * Gives a client whose credentials were verified its mail box and lets it know it's connected
+     *
+     * @param key     of the client
+     * @param message that the client connected with
+     * @param id      of the client
+     */
+    private void connected(SelectionKey key, Message message, int id) {
         //create a new mailbox for the client and put it with the mail boxes
         mailBoxes.newMailBox(id, key);
 
@@ -247,16 +682,17 @@ public class ReaderFactory extends ShutDownThread {
         //send the message with the id to the new thread
         Message m = messageFactory.newInstance(MessageType.CONNECT, message.getSenderID(), message.getPassword(), message.getThreadID(), message.getThreadName(), "");
         mailBoxes.putMessageInBox(message.getSenderID(), m);
+        m.release();
     }
 
     /**
-     * Takes in a message and puts it in the receivers' mail boxes
+     * Takes in a message, gives it an id and puts it in the receivers' mail boxes.
+     * The receivers get a copy of the message carrying its id, so the id is what they ask for the history with
      *
      * @param key
      * @param message to be dispatched
-     * @throws SQLException If a database related error occurs
      */
-    private void relayMessage(SelectionKey key, Message message) throws SQLException {
+    private void relayMessage(SelectionKey key, Message message) {
         System.out.println("Relaying a message");
         int senderID = message.getSenderID();
         //check if the sender has identified himself
@@ -264,92 +700,201 @@ public class ReaderFactory extends ShutDownThread {
             sendFailingMessage(key, "You haven't been connected yet");
             return;
         }
+        if (!members.membersOf(message.getThreadID()).contains(senderID)) {
+            sendFailingMessage(key, "You are not a member of the thread");
+            return;
+        }
 
-        ArrayList<Integer> participantIds = new ArrayList<>();
-        //refer to the database so that you know who is in the thread of the message
-        synchronized (getParticipants) {
-            getParticipants.setInt(1, message.getThreadID());
-            getParticipants.setInt(2, senderID);
-
-            //get the ids of the clients that are in the same thread
-            try (ResultSet rs = getParticipants.executeQuery()) {
-                getParticipants.clearParameters();
-
-                //collect the ids of the participants
-                while (rs.next()) {
-                    participantIds.add(rs.getInt(1));
+        Lock lock = ingress[message.getThreadID() & (INGRESS_STRIPES - 1)];
+        if (durability == MessageSaver.Durability.AFTER_ENQUEUE) {
+            //the receivers get the message right away; the sender is only told if it couldn't be saved later on
+            //(a message that couldn't even be queued isn't delivered at all)
+            Message stamped;
+            lock.lock();
+            try {
+                stamped = stamp(message);
+                if (!saver.save(stamped.getMessageID(), senderID, message.getThreadID(), message.getDate(),
+                        message.getContents(), null, e -> sendFailingMessage(key, "the message could not be saved"))) {
+                    stamped.release();
+                    return;
                 }
+                recent.add(stamped);
+            } finally {
+                lock.unlock();
             }
+            fanOut(stamped);
+            stamped.release();
+            return;
         }
 
+        //the message is delivered by the saver once it's committed, in the order of the queue, so it's kept until then
+        lock.lock();
         try {
-            //save the message into the database
-            saveMessage(message.getSenderID(), message.getThreadID(), message.getDate(), message.getContents());
-            //put the message in each receiver's mail box
-            mailBoxes.putMessageInBoxes(message, participantIds);
-        } catch (SQLException e) {
-            // in case the client send a message with an unknown sender id or thread id this break database strains
-            sendFailingMessage(key, "the message could not be delivered");
+            Message stamped = stamp(message);
+            //a message that isn't queued is released and reported by the failure callback right away,
+            //so whether it was queued doesn't matter here
+            saver.save(stamped.getMessageID(), senderID, message.getThreadID(), message.getDate(), message.getContents(),
+                    () -> {
+                        try {
+                            recent.add(stamped);
+                            fanOut(stamped);
+                        } finally {
+                            stamped.release();
+                        }
+                    },
+                    e -> {
+                        stamped.release();
+                        // in case the client send a message with an unknown sender id or thread id this break database strains
+                        sendFailingMessage(key, "the message could not be delivered");
+                    });
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Creates a new cat thread requested by a client
+     * Gives a received message its id
+     *
+     * @param message as received from the sender
+     * @return a copy of the message carrying the next id
+     */
+    private Message stamp(Message message) {
+        return messageFactory.newInstance(MessageType.SEND, message.getSenderID(), "", message.getThreadID(), "",
+                message.getContents(), message.getDate(), ids.next());
+    }
+
+    /**
+     * Puts a message in the mail box of every member of its thread except the sender
+     *
+     * @param message to be delivered
+     */
+    private void fanOut(Message message) {
+        mailBoxes.putMessageInBoxes(message, members.membersOf(message.getThreadID()), message.getSenderID());
+    }
+
+    /**
+     * Joins a client to a chat thread by the thread's name, creating the thread if it doesn't exist yet.
+     * The id of a known thread is taken from the room directory, and concurrent requests for a thread that
+     * isn't known share a single lookup, so a thread is created only once
      *
      * @param message specifying the thread creation
-     * @throws SQLException If a database related error occurs
      */
-    private void createThread(SelectionKey key, Message message) throws SQLException {
+    private void createThread(SelectionKey key, Message message) {
 
         String threadName = message.getThreadName();
-        boolean tryCreating = false;
-        int threadID = 0;
+        int senderID = message.getSenderID();
+        if (!mailBoxes.thereIsBoxOf(senderID)) {
+            sendFailingMessage(key, "You haven't been connected yet");
+            return;
+        }
 
-        //first we see if the thread exists
-        synchronized (getThreadID) {
-            try {
-                getThreadID.setString(1, message.getThreadName());
-                try (ResultSet rs = getThreadID.executeQuery()) {
-                    rs.next();
-                    threadID = rs.getInt(1);
-                }
-            } catch (SQLException e) {
-                // the thread does not exist in the database so create it
-                tryCreating = true;
-            }
+        int threadID;
+        try {
+            threadID = rooms.idOf(threadName, this::findOrCreateThread);
+        } catch (SQLException e) {
+            sendFailingMessage(key, "Failed to create the thread");
+            return;
         }
 
-        //if the requested thread is non-existent yet
-        if (tryCreating) {
+        //the user gets the messages of the thread from now on; a member already has a row
+        if (members.join(threadID, senderID)) {
             try {
-                synchronized (createThread) {
-                    //create it
-                    createThread.setString(1, threadName);
-                    createThread.executeUpdate();
-                    createThread.clearParameters();
-
-                    //get the newly generated id
-                    try (ResultSet rs = createThread.getGeneratedKeys()) {
-                        rs.next();
-                        threadID = rs.getInt(1);
-                    }
-                }
-                System.out.println("Creating a new chat thread for a user");
+                membership.join(threadID, senderID);
             } catch (SQLException e) {
-                sendFailingMessage(key, "Failed to create the thread");
+                members.leave(threadID, senderID);
+                sendFailingMessage(key, "Failed to join the thread");
+                return;
             }
         }
 
-        //save the message in the database
-        int senderIDid = message.getSenderID();
-
         //send the message with the id to the new thread
-        Message m = messageFactory.newInstance(MessageType.NEW_THREAD, senderIDid, "", threadID, threadName, "");
-        mailBoxes.putMessageInBox(senderIDid, m);
+        Message m = messageFactory.newInstance(MessageType.NEW_THREAD, senderID, "", threadID, threadName, "");
+        mailBoxes.putMessageInBox(senderID, m);
+        m.release();
+    }
+
+    /**
+     * Removes a client from the members of a chat thread, so it no longer gets the thread's messages
+     *
+     * @param message specifying the thread to be left
+     */
+    private void leaveThread(SelectionKey key, Message message) {
+        int senderID = message.getSenderID();
+        int threadID = message.getThreadID();
+        if (!mailBoxes.thereIsBoxOf(senderID)) {
+            sendFailingMessage(key, "You haven't been connected yet");
+            return;
+        }
+        if (!members.leave(threadID, senderID)) {
+            sendFailingMessage(key, "You are not a member of the thread");
+            return;
+        }
+
+        try {
+            membership.leave(threadID, senderID);
+        } catch (SQLException e) {
+            members.join(threadID, senderID);
+            sendFailingMessage(key, "Failed to leave the thread");
+            return;
+        }
+
+        Message m = messageFactory.newInstance(MessageType.LEAVE, senderID, "", threadID, "", "");
+        mailBoxes.putMessageInBox(senderID, m);
+        m.release();
+    }
+
+    /**
+     * Looks a chat thread up in the database, creating it if it doesn't exist yet
+     *
+     * @param threadName of the thread
+     * @return the id of the thread
+     * @throws SQLException if the thread could neither be found nor created
+     */
+    private int findOrCreateThread(String threadName) throws SQLException {
+
+        //first we see if the thread exists
+        int threadID = findThread(threadName);
+        if (threadID > 0) return threadID;
+
+        try (ConnectionPool.PooledConnection connection = writePool.acquire()) {
+            PreparedStatement createThread = connection.prepare(CREATE_THREAD, Statement.RETURN_GENERATED_KEYS);
+            createThread.setString(1, threadName);
+            createThread.executeUpdate();
+            createThread.clearParameters();
+
+            //get the newly generated id
+            try (ResultSet rs = createThread.getGeneratedKeys()) {
+                if (!rs.next()) throw new SQLException("No id was generated for the thread " + threadName);
+                threadID = rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            //the name is unique, so the thread could have been created by another server meanwhile
+            threadID = findThread(threadName);
+            if (threadID > 0) return threadID;
+            throw e;
+        }
+        System.out.println("Creating a new chat thread for a user");
+
+        //the thread has no history yet, so the cache holds all of it
+        recent.created(threadID);
+        return threadID;
+    }
 
-        //if a new thread was created join the user to it
-        if (tryCreating)
-            saveMessage(senderIDid, threadID, message.getDate(), helloMess);
+    /**
+     * Looks the id of a chat thread up in the database
+     *
+     * @param threadName of the thread
+     * @return the id of the thread; 0 if there's no such thread
+     * @throws SQLException if the database could not be queried
+     */
+    private int findThread(String threadName) throws SQLException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire()) {
+            PreparedStatement getThreadID = connection.prepare(GET_THREAD_ID);
+            getThreadID.setString(1, threadName);
+            try (ResultSet rs = getThreadID.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
     }
 
     /**
@@ -362,35 +907,86 @@ public class ReaderFactory extends ShutDownThread {
     }
 
     /**
-     * Creates a new error message to a related failed attempt
+     * Sends a page of a thread's history to a member of the thread: the messages received before the message whose id
+     * the request carries, from the newest to the oldest one, followed by a HISTORY message with the id to ask for
+     * the next page with.
+     * The messages are put in the mail box as they're read, and a page never holds more than half of a mail box,
+     * so fetching the history doesn't push out the live messages. A page of the recent history is sent from the
+     * cache of the latest messages without reading the store
      *
-     * @param senderID of the sender
-     * @param message  to be sent to the to the client
+     * @param key     of the sender
+     * @param message asking for the history; its contents are the number of messages in the page
      */
-    private void sendFailingMessage(SelectionKey senderID, String message) {
-        Message m = messageFactory.newInstance(MessageType.FAILURE, -1, "", 0, "", message);
-        mailBoxes.putMessageInBox(senderID, m);
+    private void sendHistory(SelectionKey key, Message message) {
+        int senderID = message.getSenderID();
+        int threadID = message.getThreadID();
+        if (!mailBoxes.thereIsBoxOf(senderID)) {
+            sendFailingMessage(key, "You haven't been connected yet");
+            return;
+        }
+        if (!members.membersOf(threadID).contains(senderID)) {
+            sendFailingMessage(key, "You are not a member of the thread");
+            return;
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(message.getContents().trim());
+        } catch (NumberFormatException e) {
+            limit = DEFAULT_HISTORY_PAGE;
+        }
+        limit = Math.max(1, Math.min(limit, Math.min(MAX_HISTORY_PAGE, mailBoxes.mailBoxLimit() / 2)));
+
+        //no id means the latest messages
+        long before = message.getMessageID() > 0 ? message.getMessageID() : Long.MAX_VALUE;
+
+        int[] sent = {0};
+        long[] oldest = {before};
+        //a page of the recent history is sent right from the cache
+        boolean cached = recent.history(threadID, before, limit, m -> {
+            mailBoxes.putMessageInBox(key, m);
+            sent[0]++;
+            oldest[0] = m.getMessageID();
+        });
+        if (!cached) {
+            Consumer<StoredMessage> send = stored -> {
+                Message m = messageFactory.newInstance(MessageType.SEND, stored.getSenderID(), "", threadID, "",
+                        stored.getContents(), stored.getDate(), stored.getMessageID());
+                mailBoxes.putMessageInBox(key, m);
+                m.release();
+
+                sent[0]++;
+                oldest[0] = stored.getMessageID();
+            };
+            try {
+                store.history(threadID, before, limit, send);
+                //the rest of the page is older than anything left in the store
+                if (archive != null && sent[0] < limit)
+                    archive.history(threadID, oldest[0], limit - sent[0], send);
+            } catch (IOException e) {
+                sendFailingMessage(key, "The history could not be read");
+                return;
+            }
+        }
+
+        //a short page is the last one
+        long next = sent[0] < limit ? 0 : oldest[0];
+        Message end = messageFactory.newInstance(MessageType.HISTORY, -1, "", threadID, "", String.valueOf(sent[0]),
+                System.currentTimeMillis(), next);
+        mailBoxes.putMessageInBox(key, end);
+        end.release();
     }
 
     /**
-     * Saves a new message to the database
+     * Creates a new error message to a related failed attempt
      *
      * @param senderID of the sender
-     * @param threadID of the thread
-     * @param date     of the message
-     * @param contents of the message
-     * @throws SQLException If a database related error occurs
+     * @param message  to be sent to the to the client
      */
-    private void saveMessage(int senderID, int threadID, long date, String contents) throws SQLException {
-        synchronized (saveMessage) {
-            Timestamp sqlDate = new Timestamp(date);
-            saveMessage.setInt(1, threadID);
-            saveMessage.setInt(2, senderID);
-            saveMessage.setString(3, contents);
-            saveMessage.setTimestamp(4, sqlDate);
-            saveMessage.executeUpdate();
-            saveMessage.clearParameters();
-        }
+    private void sendFailingMessage(SelectionKey senderID, String message) {
+        Message m = messageFactory.newInstance(MessageType.FAILURE, -1, "", 0, "", message);
+        mailBoxes.putMessageInBox(senderID, m);
+        m.release();
     }
 
 }
@@ -0,0 +1,344 @@
+package valchanov.georgi;
+
+import valchanov.georgi.messages.Message;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the latest messages of the active chat threads in memory, so that the recent history of a thread
+ * is sent without reading the store.<br>
+ * Every thread that has been posted in has a ring of its latest relayed messages; once the ring is full the oldest
+ * message makes room for the newest one. The ring holds a reference to each message, so a message from the ring
+ * is put in a mail box as it is. A thread that has been quiet for longer than the idle time loses its ring,
+ * and once there are more rings than allowed the least recently used ones go first.
+ * <p>
+ * A ring only ever holds every message since it was created, so a page of history is sent from the ring if the
+ * ring has enough messages received before the cursor, or if the ring was created together with its thread
+ */
+public class RecentMessages {
+
+    /**
+     * Default number of messages kept for a thread
+     */
+    public static final int DEFAULT_PER_ROOM = 100;
+
+    /**
+     * Default number of threads that have their messages kept
+     */
+    public static final int DEFAULT_ROOMS = 1024;
+
+    /**
+     * Default time in milliseconds after which a quiet thread loses its messages
+     */
+    public static final long DEFAULT_IDLE_TIME = 10 * 60 * 1000;
+
+    /**
+     * Number of messages kept for a thread
+     */
+    private final int perRoom;
+
+    /**
+     * Number of threads that have their messages kept
+     */
+    private final int maxRooms;
+
+    /**
+     * Time in nanoseconds after which a quiet thread loses its messages
+     */
+    private final long idleTime;
+
+    /**
+     * The ring of each thread by the thread's id
+     */
+    private final IntMap<Ring> rooms;
+    private final AtomicInteger roomCount;
+
+    /**
+     * Time of the last look for quiet threads
+     */
+    private final AtomicLong lastSweep;
+
+    /**
+     * Number of pages sent from the rings, of pages that had to be read from the store and of evicted rings
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * Creates a new cache
+     *
+     * @param perRoom      number of messages kept for a thread; 0 for keeping none
+     * @param maxRooms     number of threads that have their messages kept
+     * @param idleMillis   time in milliseconds after which a quiet thread loses its messages
+     * @throws IllegalArgumentException if a number is negative or no thread could be kept
+     */
+    public RecentMessages(int perRoom, int maxRooms, long idleMillis) throws IllegalArgumentException {
+        if (perRoom < 0 || maxRooms < 1 || idleMillis < 1)
+            throw new IllegalArgumentException("At least one thread has to be kept for a positive time");
+
+        this.perRoom = perRoom;
+        this.maxRooms = maxRooms;
+        this.idleTime = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.rooms = new IntMap<>();
+        this.roomCount = new AtomicInteger();
+        this.lastSweep = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Starts keeping the messages of a thread that has just been created, so its whole history is in the ring
+     * until the ring is full
+     *
+     * @param threadID of the new thread
+     */
+    public void created(int threadID) {
+        if (perRoom == 0) return;
+
+        Ring ring = new Ring(perRoom, true);
+        if (rooms.putIfAbsent(threadID, ring) == null) roomAdded();
+    }
+
+    /**
+     * Adds a relayed message to the ring of its thread
+     *
+     * @param message that was relayed; the ring takes a reference of its own
+     */
+    public void add(Message message) {
+        if (perRoom == 0) return;
+
+        int threadID = message.getThreadID();
+        while (true) {
+            Ring ring = rooms.get(threadID);
+            if (ring == null) {
+                Ring created = new Ring(perRoom, false);
+                ring = rooms.putIfAbsent(threadID, created);
+                if (ring == null) {
+                    ring = created;
+                    roomAdded();
+                }
+            }
+            //an evicted ring is dropped from the map, so the next try finds a live one
+            if (ring.add(message)) break;
+        }
+
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last > idleTime / 4 && lastSweep.compareAndSet(last, now)) sweep(now);
+    }
+
+    /**
+     * Passes the latest messages of a thread that were received before a message to a consumer, from the newest
+     * to the oldest one, if the ring of the thread holds the whole page
+     *
+     * @param threadID of the thread
+     * @param before   id of the message that the messages have smaller ids than
+     * @param limit    maximum number of messages
+     * @param consumer of the messages; it has to take its own reference to a message it keeps
+     * @return false if the page has to be read from the store, in which case nothing was passed to the consumer
+     */
+    public boolean history(int threadID, long before, int limit, Consumer<Message> consumer) {
+        Ring ring = perRoom == 0 ? null : rooms.get(threadID);
+        Message[] page = ring == null ? null : ring.page(before, limit);
+        if (page == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+
+        //the messages were retained by the ring, so they stay alive while the mail boxes take them
+        try {
+            for (Message message : page) consumer.accept(message);
+        } finally {
+            for (Message message : page) message.release();
+        }
+        return true;
+    }
+
+    /**
+     * Drops the messages of every thread
+     */
+    public void clear() {
+        for (int threadID : rooms.keys()) {
+            Ring ring = rooms.remove(threadID);
+            if (ring != null) {
+                ring.evict();
+                roomCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of pages of history sent from the rings
+     *
+     * @return the number of pages sent from memory
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of pages of history that had to be read from the store
+     *
+     * @return the number of pages read from the store
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of threads that lost their ring for being quiet or the least recently used
+     *
+     * @return the number of evicted rings
+     */
+    public long evicted() {
+        return evicted.get();
+    }
+
+    /**
+     * Counts a new ring, looking for rings to be evicted if there are too many
+     */
+    private void roomAdded() {
+        if (roomCount.incrementAndGet() > maxRooms) {
+            long now = System.nanoTime();
+            lastSweep.set(now);
+            sweep(now);
+        }
+    }
+
+    /**
+     * Evicts the rings of the quiet threads and, if there are still too many, the least recently used ones
+     * until a quarter of the allowed rings is free
+     *
+     * @param now the current time in nanoseconds
+     */
+    private void sweep(long now) {
+        int[] threadIDs = rooms.keys();
+        long[] lastUsed = new long[threadIDs.length];
+        int kept = 0;
+        for (int threadID : threadIDs) {
+            Ring ring = rooms.get(threadID);
+            if (ring == null) continue;
+
+            long used = ring.lastUsed;
+            if (now - used > idleTime) {
+                evict(threadID, ring);
+            } else {
+                threadIDs[kept] = threadID;
+                lastUsed[kept++] = used;
+            }
+        }
+
+        if (roomCount.get() <= maxRooms) return;
+
+        Eviction.evictOldest(lastUsed, kept, roomCount.get() - maxRooms * 3 / 4, i -> {
+            Ring ring = rooms.get(threadIDs[i]);
+            return ring != null && evict(threadIDs[i], ring);
+        });
+    }
+
+    /**
+     * Evicts the ring of a thread
+     *
+     * @param threadID of the thread
+     * @param ring     of the thread
+     * @return true if the ring was still the thread's
+     */
+    private boolean evict(int threadID, Ring ring) {
+        if (!rooms.remove(threadID, ring)) return false;
+
+        ring.evict();
+        roomCount.decrementAndGet();
+        evicted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The latest messages of a thread in the order they were relayed
+     */
+    private static final class Ring {
+
+        private final Message[] messages;
+
+        /**
+         * Index of the oldest message and the number of messages
+         */
+        private int head;
+        private int size;
+
+        /**
+         * True while the ring holds every message of its thread
+         */
+        private boolean whole;
+
+        /**
+         * True once the ring is evicted; nothing is added to it afterwards
+         */
+        private boolean evicted;
+
+        /**
+         * Time in nanoseconds that the ring was last added to or read from
+         */
+        volatile long lastUsed;
+
+        Ring(int capacity, boolean whole) {
+            this.messages = new Message[capacity];
+            this.whole = whole;
+            this.lastUsed = System.nanoTime();
+        }
+
+        synchronized boolean add(Message message) {
+            if (evicted) return false;
+
+            int tail = (head + size) % messages.length;
+            if (size == messages.length) {
+                //the oldest message makes room, so the ring no longer has the whole history
+                messages[head].release();
+                head = (head + 1) % messages.length;
+                whole = false;
+            } else {
+                size++;
+            }
+            messages[tail] = message.retain();
+            lastUsed = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Returns the latest messages received before a message, each with a reference of its own
+         *
+         * @param before id of the message that the messages have smaller ids than
+         * @param limit  maximum number of messages
+         * @return the messages from the newest to the oldest one; null if the ring doesn't hold the whole page
+         */
+        synchronized Message[] page(long before, int limit) {
+            if (evicted) return null;
+
+            Message[] page = new Message[Math.min(limit, size)];
+            int found = 0;
+            for (int i = size - 1; i >= 0 && found < page.length; i--) {
+                Message message = messages[(head + i) % messages.length];
+                if (message.getMessageID() < before) page[found++] = message;
+            }
+
+            //messages older than the ring's oldest one could be in the store
+            if (found < limit && !whole) return null;
+
+            for (int i = 0; i < found; i++) page[i].retain();
+            lastUsed = System.nanoTime();
+            return found == page.length ? page : Arrays.copyOf(page, found);
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            for (int i = 0; i < size; i++) {
+                messages[(head + i) % messages.length].release();
+                messages[(head + i) % messages.length] = null;
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package valchanov.georgi;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the id of each chat thread by the thread's name, so that joining an existing thread doesn't
+ * query the database.<br>
+ * A name that isn't remembered is resolved only once at a time: the first request for it looks it up or creates
+ * the thread, and the requests for the same name that come meanwhile wait for its outcome instead of querying
+ * the database themselves. A thread is never renamed nor dropped, so an id is kept until the directory is full,
+ * when the least recently used names are evicted
+ */
+public class RoomDirectory {
+
+    /**
+     * Resolves the name of a thread to its id, e.g. by looking it up in the database and creating the thread
+     * if it doesn't exist yet
+     */
+    @FunctionalInterface
+    public interface Resolver {
+
+        /**
+         * Resolves the name of a thread
+         *
+         * @param threadName of the thread
+         * @return the id of the thread
+         * @throws SQLException if the thread could neither be found nor created
+         */
+        int resolve(String threadName) throws SQLException;
+    }
+
+    /**
+     * Default number of names that are remembered
+     */
+    public static final int DEFAULT_SIZE = 1 << 14;
+
+    /**
+     * Number of names that are remembered
+     */
+    private final int maxSize;
+
+    /**
+     * The id of each thread by the thread's name
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * The resolution in progress of each name that isn't remembered
+     */
+    private final Map<String, CompletableFuture<Integer>> resolving;
+
+    /**
+     * Lets a single thread evict at a time; a lock rather than a monitor, so a virtual thread isn't pinned
+     */
+    private final Lock evictLock = new ReentrantLock();
+
+    /**
+     * Number of names answered from memory, of those that had to be resolved and of those that waited
+     * for a resolution in progress
+     */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Creates a new directory
+     *
+     * @param maxSize number of names that are remembered; 0 for remembering none
+     * @throws IllegalArgumentException if the size is negative
+     */
+    public RoomDirectory(int maxSize) throws IllegalArgumentException {
+        if (maxSize < 0)
+            throw new IllegalArgumentException("The size of the directory can't be negative");
+
+        this.maxSize = maxSize;
+        this.entries = new ConcurrentHashMap<>();
+        this.resolving = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the id of a thread, resolving its name if it isn't remembered.
+     * If the name is being resolved already, waits for that resolution instead
+     *
+     * @param threadName of the thread
+     * @param resolver   that resolves the name if it isn't remembered
+     * @return the id of the thread
+     * @throws SQLException if the name could not be resolved
+     */
+    public int idOf(String threadName, Resolver resolver) throws SQLException {
+        Entry entry = entries.get(threadName);
+        if (entry != null) {
+            entry.lastUsed = System.nanoTime();
+            hits.incrementAndGet();
+            return entry.threadID;
+        }
+
+        CompletableFuture<Integer> resolution = new CompletableFuture<>();
+        CompletableFuture<Integer> running = resolving.putIfAbsent(threadName, resolution);
+        if (running != null) {
+            shared.incrementAndGet();
+            return await(running);
+        }
+
+        misses.incrementAndGet();
+        try {
+            //the name could have been remembered just before this resolution was registered
+            entry = entries.get(threadName);
+            int threadID = entry != null ? entry.threadID : resolver.resolve(threadName);
+            remember(threadName, threadID);
+            resolution.complete(threadID);
+            return threadID;
+        } catch (SQLException | RuntimeException e) {
+            //the waiting requests fail as well, while the next request tries again
+            resolution.completeExceptionally(e);
+            throw e;
+        } finally {
+            resolving.remove(threadName, resolution);
+        }
+    }
+
+    /**
+     * Returns the number of names answered from memory
+     *
+     * @return the number of names that didn't need the database
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of names that had to be resolved
+     *
+     * @return the number of names that needed the database
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of names that waited for a resolution in progress instead of resolving the name again
+     *
+     * @return the number of shared resolutions
+     */
+    public long shared() {
+        return shared.get();
+    }
+
+    /**
+     * Waits for the resolution of a name by another request
+     *
+     * @param running resolution of the name
+     * @return the id of the thread
+     * @throws SQLException if the name could not be resolved
+     */
+    private static int await(CompletableFuture<Integer> running) throws SQLException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Remembers the id of a thread, evicting names if the directory is full
+     *
+     * @param threadName of the thread
+     * @param threadID   of the thread
+     */
+    private void remember(String threadName, int threadID) {
+        if (maxSize == 0) return;
+
+        entries.put(threadName, new Entry(threadID));
+        if (entries.size() > maxSize) evict();
+    }
+
+    /**
+     * Evicts the least recently used names until a quarter of the directory is free
+     */
+    private void evict() {
+        evictLock.lock();
+        try {
+            if (entries.size() <= maxSize) return;
+
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+            long[] lastUsed = new long[snapshot.size()];
+            for (int i = 0; i < lastUsed.length; i++) {
+                lastUsed[i] = snapshot.get(i).getValue().lastUsed;
+            }
+
+            Eviction.evictOldest(lastUsed, lastUsed.length, entries.size() - maxSize * 3 / 4,
+                    i -> entries.remove(snapshot.get(i).getKey(), snapshot.get(i).getValue()));
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    /**
+     * The id of a thread and when its name was last used
+     */
+    private static final class Entry {
+
+        final int threadID;
+
+        /**
+         * Time in nanoseconds that the name was last resolved to the id
+         */
+        volatile long lastUsed;
+
+        Entry(int threadID) {
+            this.threadID = threadID;
+            this.lastUsed = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package valchanov.georgi;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the members of every chat room in memory, so that relaying a message doesn't have to ask the database
+ * who is in the room.<br>
+ * The members of a room are an immutable {@link MemberSet} that is swapped for a new one when someone joins,
+ * so the members are read without any locking
+ */
+public class RoomMembers {
+
+    /**
+     * The members of each room by the room's id
+     */
+    private final IntMap<AtomicReference<MemberSet>> rooms;
+
+    /**
+     * Creates an index without any rooms
+     */
+    public RoomMembers() {
+        this.rooms = new IntMap<>();
+    }
+
+    /**
+     * Adds a user to the members of a room
+     *
+     * @param threadID of the room
+     * @param userID   of the user
+     * @return true if the user wasn't a member before
+     */
+    public boolean join(int threadID, int userID) {
+        AtomicReference<MemberSet> members = membersRef(threadID);
+
+        MemberSet current;
+        MemberSet joined;
+        do {
+            current = members.get();
+            joined = current.with(userID);
+            if (joined == current) return false;
+        } while (!members.compareAndSet(current, joined));
+
+        return true;
+    }
+
+    /**
+     * Adds many users to the members of a room at once, e.g. while the members are loaded on start
+     *
+     * @param threadID of the room
+     * @param userIDs  of the users, in any order
+     */
+    public void joinAll(int threadID, int[] userIDs) {
+        AtomicReference<MemberSet> members = membersRef(threadID);
+
+        MemberSet current;
+        MemberSet joined;
+        do {
+            current = members.get();
+            joined = current.withAll(userIDs);
+        } while (joined != current && !members.compareAndSet(current, joined));
+    }
+
+    /**
+     * Returns a new loader for joining rows of (room, user) pairs in bulk
+     *
+     * @return a new loader, to be used by a single thread
+     */
+    public Loader loader() {
+        return new Loader();
+    }
+
+    /**
+     * Removes a user from the members of a room
+     *
+     * @param threadID of the room
+     * @param userID   of the user
+     * @return true if the user was a member before
+     */
+    public boolean leave(int threadID, int userID) {
+        AtomicReference<MemberSet> members = rooms.get(threadID);
+        if (members == null) return false;
+
+        MemberSet current;
+        MemberSet left;
+        do {
+            current = members.get();
+            left = current.without(userID);
+            if (left == current) return false;
+        } while (!members.compareAndSet(current, left));
+
+        return true;
+    }
+
+    /**
+     * Returns the ids of the rooms that have ever had a member
+     *
+     * @return the ids of the known rooms at the time of the call
+     */
+    public int[] rooms() {
+        return rooms.keys();
+    }
+
+    /**
+     * Returns the members of a room
+     *
+     * @param threadID of the room
+     * @return the members of the room at the time of the call; empty if the room isn't known
+     */
+    public MemberSet membersOf(int threadID) {
+        AtomicReference<MemberSet> members = rooms.get(threadID);
+        return members == null ? MemberSet.EMPTY : members.get();
+    }
+
+    /**
+     * Returns the members of a room that can be swapped, creating the room if it isn't known yet
+     *
+     * @param threadID of the room
+     * @return the reference to the members of the room
+     */
+    private AtomicReference<MemberSet> membersRef(int threadID) {
+        AtomicReference<MemberSet> members = rooms.get(threadID);
+        if (members == null) {
+            AtomicReference<MemberSet> created = new AtomicReference<>(MemberSet.EMPTY);
+            members = rooms.putIfAbsent(threadID, created);
+            if (members == null) members = created;
+        }
+        return members;
+    }
+
+    /**
+     * Collects the members of a room from consecutive rows and joins them all at once once the rows move on
+     * to another room, so loading a room of n members builds a single set instead of n of them.
+     * Rows of a room that aren't consecutive are still joined, just with a set for each run of them
+     */
+    public final class Loader {
+
+        private int threadID = -1;
+        private int[] userIDs = new int[16];
+        private int count;
+
+        private Loader() {
+        }
+
+        /**
+         * Adds a user to the members of a room
+         *
+         * @param threadID of the room
+         * @param userID   of the user
+         */
+        public void add(int threadID, int userID) {
+            if (threadID != this.threadID) {
+                flush();
+                this.threadID = threadID;
+            }
+            if (count == userIDs.length) userIDs = Arrays.copyOf(userIDs, count * 2);
+            userIDs[count++] = userID;
+        }
+
+        /**
+         * Joins the members that are still collected; has to be called after the last row
+         */
+        public void finish() {
+            flush();
+        }
+
+        private void flush() {
+            if (count == 0) return;
+            joinAll(threadID, Arrays.copyOf(userIDs, count));
+            count = 0;
+        }
+    }
+}
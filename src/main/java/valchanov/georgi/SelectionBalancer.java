@@ -0,0 +1,93 @@
+package valchanov.georgi;
+
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads newly accepted {@link SocketChannel}s across a group of {@link SelectionThread}s.<br>
+ * Every selection thread has its own selector and registration queue, so a socket stays
+ * with the thread it was handed to for its whole life.
+ */
+public class SelectionBalancer {
+
+    /**
+     * How the next selection thread is picked
+     */
+    public enum Policy {
+        /**
+         * Each thread gets a connection in turn
+         */
+        ROUND_ROBIN,
+        /**
+         * The thread with the fewest registered keys gets the connection
+         */
+        LEAST_LOADED
+    }
+
+    /**
+     * The threads that connections are spread across
+     */
+    private final SelectionThread[] threads;
+
+    /**
+     * Used for picking the next thread
+     */
+    private final Policy policy;
+
+    /**
+     * Position of the next thread in round robin
+     */
+    private final AtomicInteger next;
+
+    /**
+     * Creates a new balancer over a group of selection threads
+     *
+     * @param threads that are going to be handed connections
+     * @param policy  by which the next thread is picked
+     * @throws IllegalArgumentException if there are no threads to balance
+     */
+    public SelectionBalancer(SelectionThread[] threads, Policy policy) throws IllegalArgumentException {
+        if (threads.length == 0)
+            throw new IllegalArgumentException("There are no selection threads to balance");
+
+        this.threads = threads;
+        this.policy = policy;
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Picks the selection thread that should watch over the next connection
+     *
+     * @return the selection thread for the next connection
+     */
+    public SelectionThread next() {
+        if (threads.length == 1)
+            return threads[0];
+
+        if (policy == Policy.LEAST_LOADED) {
+            SelectionThread least = threads[0];
+            int leastKeys = least.keyCount();
+
+            for (int i = 1; i < threads.length; i++) {
+                int keys = threads[i].keyCount();
+                if (keys < leastKeys) {
+                    least = threads[i];
+                    leastKeys = keys;
+                }
+            }
+            return least;
+        }
+
+        //floorMod keeps the index positive once the counter overflows
+        return threads[Math.floorMod(next.getAndIncrement(), threads.length)];
+    }
+
+    /**
+     * Hands a socket to the next selection thread
+     *
+     * @param socket to be registered
+     */
+    public void registerSocket(SocketChannel socket) {
+        next().registerSocket(socket);
+    }
+}
@@ -1,11 +1,18 @@
 package valchanov.georgi;
 
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Class for watching over many connections.<br>
@@ -14,10 +21,20 @@ import java.util.function.BiFunction;
  * The class provide the specification of handlers when a key is selected. Handling could be on
  * either reading or writing. There is no default handlers in place
  * <p>
+ * Only the selection thread itself changes the interest ops of its keys. Other threads post their changes
+ * to a queue that is applied in one batch before every select, and the selector is woken up at most once
+ * between two selects no matter how many changes were posted
+ * <p>
  * Extensions of the class need to specify how the selection would be done
  */
 public abstract class SelectionThread extends ShutDownThread {
 
+    /**
+     * Maximum number of connections accepted in one select cycle
+     * so that a reconnect storm doesn't starve the already registered sockets
+     */
+    private static final int ACCEPT_BATCH = 256;
+
     /**
      * Used for selecting channel sockets for reading an writing
      */
@@ -38,10 +55,41 @@ public abstract class SelectionThread extends ShutDownThread {
      */
     private BiFunction<SelectionKey, Integer, Runnable> writable;
 
+    /**
+     * provides the attachment of each newly registered socket's key
+     */
+    private Function<SelectionThread, ?> attachments;
+
+    /**
+     * Changes of the keys' interest ops posted by other threads
+     */
+    private ConcurrentLinkedQueue<InterestChange> interestQueue;
+
+    /**
+     * True if the selector has already been woken up since the last time the changes were applied
+     */
+    private AtomicBoolean wokenUp;
+
+    /**
+     * Pings and expires the connections that have gone quiet; null if connections never time out
+     */
+    private IdleReaper reaper;
+
+    /**
+     * The socket that new connections are accepted from; null if this thread doesn't accept connections
+     */
+    private ServerSocketChannel acceptChannel;
+
+    /**
+     * Spreads accepted connections across the selection threads
+     */
+    private SelectionBalancer balancer;
 
     public SelectionThread(Selector selector) {
         this.selector = selector;
         this.registerQueue = new ConcurrentLinkedQueue<>();
+        this.interestQueue = new ConcurrentLinkedQueue<>();
+        this.wokenUp = new AtomicBoolean();
     }
 
     /**
@@ -51,7 +99,160 @@ public abstract class SelectionThread extends ShutDownThread {
      */
     public void registerSocket(SocketChannel socket) {
         registerQueue.add(socket);
-        selector.wakeup();
+        wakeUp();
+    }
+
+    /**
+     * Adds interest ops to a key of this thread's selector.
+     * If called from another thread, the change is applied before the next select
+     *
+     * @param key of this thread's selector
+     * @param ops to be added
+     */
+    public void addInterest(SelectionKey key, int ops) {
+        changeInterest(key, ops, 0);
+    }
+
+    /**
+     * Removes interest ops from a key of this thread's selector.
+     * If called from another thread, the change is applied before the next select
+     *
+     * @param key of this thread's selector
+     * @param ops to be removed
+     */
+    public void removeInterest(SelectionKey key, int ops) {
+        changeInterest(key, 0, ops);
+    }
+
+    /**
+     * Changes the interest ops of a key right away if called from this thread; otherwise posts the change
+     *
+     * @param key    whose interest ops are changed
+     * @param add    ops to be added
+     * @param remove ops to be removed
+     */
+    private void changeInterest(SelectionKey key, int add, int remove) {
+        if (Thread.currentThread() == this) {
+            applyInterest(key, add, remove);
+            return;
+        }
+
+        interestQueue.add(new InterestChange(key, add, remove));
+        wakeUp();
+    }
+
+    /**
+     * Wakes up the selector unless it has already been woken up since the changes were last applied
+     */
+    private void wakeUp() {
+        if (wokenUp.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /**
+     * Registers the waiting sockets and applies the posted interest changes.
+     * Has to be called by this thread before every select
+     */
+    protected void applyChanges() {
+        //reset first, so that anything posted from now on wakes the next select up
+        wokenUp.set(false);
+
+        registerSockets();
+
+        InterestChange change;
+        while ((change = interestQueue.poll()) != null) {
+            applyInterest(change.key, change.add, change.remove);
+        }
+    }
+
+    /**
+     * Changes the interest ops of a key
+     *
+     * @param key    whose interest ops are changed
+     * @param add    ops to be added
+     * @param remove ops to be removed
+     */
+    private void applyInterest(SelectionKey key, int add, int remove) {
+        try {
+            if (key.isValid())
+                key.interestOps((key.interestOps() | add) & ~remove);
+        } catch (CancelledKeyException e) {
+            //the connection was closed in the meantime
+        }
+    }
+
+    /**
+     * Makes this thread time out the connections that have gone quiet.
+     * Has to be called before the thread is started
+     *
+     * @param timeoutMillis time in milliseconds without any traffic from a client after which its connection expires
+     * @param onIdle        called with a key that has been quiet for half of the timeout
+     * @param onExpired     called with a key that has been quiet for the whole timeout
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public void reapIdle(long timeoutMillis, Consumer<SelectionKey> onIdle, Consumer<SelectionKey> onExpired) throws IllegalArgumentException {
+        this.reaper = new IdleReaper(timeoutMillis, onIdle, onExpired);
+    }
+
+    /**
+     * Returns how long a select could block for, so that the quiet connections are looked at in time
+     *
+     * @return the timeout of a select in milliseconds; 0 if it could block until a key is selected
+     */
+    protected long selectTimeout() {
+        return reaper == null ? 0 : reaper.tickMillis();
+    }
+
+    /**
+     * Pings and expires the connections that have gone quiet since the last call.
+     * Has to be called by this thread after every select
+     */
+    protected void reapIdle() {
+        if (reaper != null) reaper.advance();
+    }
+
+    /**
+     * Makes this thread accept new connections from a server socket.
+     * Has to be called before the thread is started
+     *
+     * @param server   socket from which connections are accepted
+     * @param balancer used to pick which thread is going to watch over an accepted connection
+     * @throws IOException if the server socket could not be registered for accepting
+     */
+    public void acceptOn(ServerSocketChannel server, SelectionBalancer balancer) throws IOException {
+        this.acceptChannel = server;
+        this.balancer = balancer;
+
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Accepts a batch of pending connections and hands each to a selection thread.
+     * Sockets that stay with this thread are registered right away. Every other thread is woken up
+     * once per batch instead of once per connection
+     */
+    protected void acceptConnections() {
+        Set<SelectionThread> others = new HashSet<>();
+
+        try {
+            SocketChannel chan;
+            for (int i = 0; i < ACCEPT_BATCH && (chan = acceptChannel.accept()) != null; i++) {
+                SelectionThread thread = balancer.next();
+                thread.registerQueue.add(chan);
+
+                if (thread != this) others.add(thread);
+            }
+        } catch (IOException e) {
+            //the sockets that were accepted are still going to be registered
+            this.logger().log(e);
+            e.printStackTrace();
+        }
+
+        for (SelectionThread thread : others)
+            thread.wakeUp();
+
+        registerSockets();
     }
 
     /**
@@ -64,7 +265,8 @@ public abstract class SelectionThread extends ShutDownThread {
                 System.out.println(Thread.currentThread().getName() + ": registering a new socket");
                 try {
                     chan.configureBlocking(false);
-                    chan.register(selector, SelectionKey.OP_READ);
+                    SelectionKey key = chan.register(selector, SelectionKey.OP_READ, attachments == null ? null : attachments.apply(this));
+                    if (reaper != null) reaper.watch(key);
                 } catch (IOException e) {
                     //ignore the failure of not registering a socket
                     //it shouldn't affect the rest of the program
@@ -75,6 +277,16 @@ public abstract class SelectionThread extends ShutDownThread {
         }
     }
 
+    /**
+     * Returns the number of sockets this thread is watching over, including the ones waiting to be registered.
+     * The value is only an estimate since it's read while the selection goes on
+     *
+     * @return the number of sockets this thread is watching over
+     */
+    public int keyCount() {
+        return selector.keys().size() + registerQueue.size();
+    }
+
     /**
      * Does the selection of the  keys
      *
@@ -105,6 +317,15 @@ public abstract class SelectionThread extends ShutDownThread {
         this.writable = function;
     }
 
+    /**
+     * Provide the object that is attached to the key of every newly registered socket
+     *
+     * @param attachments creates a new attachment for each socket given the thread that is going to watch over it
+     */
+    public void onRegistering(Function<SelectionThread, ?> attachments) {
+        this.attachments = attachments;
+    }
+
     /**
      * Returns the selector
      *
@@ -132,4 +353,18 @@ public abstract class SelectionThread extends ShutDownThread {
         return writable;
     }
 
+    /**
+     * A change of a key's interest ops that was posted by another thread
+     */
+    private static class InterestChange {
+        private final SelectionKey key;
+        private final int add;
+        private final int remove;
+
+        InterestChange(SelectionKey key, int add, int remove) {
+            this.key = key;
+            this.add = add;
+            this.remove = remove;
+        }
+    }
 }
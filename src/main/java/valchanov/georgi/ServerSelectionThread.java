@@ -13,7 +13,8 @@ import java.util.concurrent.ExecutorService;
  * <p>
  * When a socket is selected a handler for it is executed on a new thread. before passing it to the thread.
  * The selection key has all of it's interests removed so that it doesn't get handled by a second thread.
- * So, it is up to the handler to wake up the key's selector and re insert the ops
+ * So, it is up to the handler to re insert the ops through {@link #addInterest}.
+ * If the reading or writing functionality handles the key right away and returns no handler, the key's ops are left as they are
  * <p>
  * The class provide the specification of handlers when a key is selected. Handling could be on
  * either reading or writing. There is no default handlers in place
@@ -45,11 +46,12 @@ public class ServerSelectionThread extends SelectionThread {
     public void run() {
         try {
             while (isRunning()) {
-                registerSockets();
+                applyChanges();
                 doSelection();
+                reapIdle();
             }
 
-            handlers.shutdown();
+            //the handlers are shared with the other selection threads, so the server shuts them down
             selector().close();
         } catch (IOException e) {
             //if the selector is broken
@@ -66,7 +68,7 @@ public class ServerSelectionThread extends SelectionThread {
     protected void doSelection() throws IOException {
 
 
-        int selected = selector().select();
+        int selected = selector().select(selectTimeout());
 
         //else the selector what probably woken up for registration
         if (selected > 0) {
@@ -79,6 +81,12 @@ public class ServerSelectionThread extends SelectionThread {
                     continue;
                 }
 
+                if (key.isAcceptable()) {
+                    acceptConnections();
+                    iterator.remove();
+                    continue;
+                }
+
                 int ops = key.interestOps();
                 Runnable handler = null;
 
@@ -87,6 +95,10 @@ public class ServerSelectionThread extends SelectionThread {
                     if (onWriting() != null)
                         handler = onWriting().apply(key, ops);
 
+                    //if the writing was done right here, the key could still be read from
+                    if (handler == null && key.isValid() && key.isReadable() && onReading() != null)
+                        handler = onReading().apply(key, key.interestOps());
+
                 } else if (key.isReadable()) {
                     if (onReading() != null)
                         handler = onReading().apply(key, ops);
@@ -94,7 +106,7 @@ public class ServerSelectionThread extends SelectionThread {
                 if (handler != null) {
                     //take the ops so that only one worker thread could work with the selection key
                     //and it doesn't get selected again
-                    key.interestOps(0);
+                    removeInterest(key, ops);
                     handlers.execute(handler);
                 }
 
@@ -0,0 +1,215 @@
+package valchanov.georgi;
+
+import valchanov.georgi.messages.Message;
+import valchanov.georgi.messages.MessageDecoder;
+
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the state of a single connection.<br>
+ * A session is attached to the connection's {@link SelectionKey} once the connection is registered with a selector.
+ * The mail box of the session is only opened after the client has identified itself
+ */
+public class Session {
+
+    /**
+     * Decodes the messages received from the connection
+     */
+    private final MessageDecoder decoder;
+
+    /**
+     * The thread watching over the connection; every change of the key's interest ops goes through it
+     */
+    private final SelectionThread selectionThread;
+
+    /**
+     * Messages scheduled to be sent to the client; null until the client has identified itself
+     */
+    private volatile MailBox mailBox;
+
+    /**
+     * Messages that were taken from the mail box but couldn't be fully written;
+     * only touched by the thread writing to the connection
+     */
+    private PendingWrite unsent;
+
+    /**
+     * True while a thread is writing to the connection
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    /**
+     * True once the mail of the session has been discarded, so that the messages of an unfinished write
+     * are released by whoever stops touching them last
+     */
+    private volatile boolean discarded;
+
+    /**
+     * Number of the mail box the session is known by in the mail office; -1 until it's given one
+     */
+    private volatile int boxNumber = -1;
+
+    /**
+     * Time in nanoseconds of the last read from the connection
+     */
+    private volatile long lastActive = System.nanoTime();
+
+    /**
+     * Creates a new session for a connection
+     *
+     * @param decoder         used for reading the messages of the connection
+     * @param selectionThread watching over the connection
+     */
+    public Session(MessageDecoder decoder, SelectionThread selectionThread) {
+        this.decoder = decoder;
+        this.selectionThread = selectionThread;
+    }
+
+    /**
+     * Returns the session attached to a selection key
+     *
+     * @param key of the connection
+     * @return the session of the connection; null if there's none attached
+     */
+    public static Session of(SelectionKey key) {
+        Object attachment = key.attachment();
+        return attachment instanceof Session ? (Session) attachment : null;
+    }
+
+    /**
+     * Returns the decoder of the connection
+     *
+     * @return the decoder of the connection
+     */
+    public MessageDecoder decoder() {
+        return decoder;
+    }
+
+    /**
+     * Returns the thread watching over the connection
+     *
+     * @return the thread watching over the connection
+     */
+    public SelectionThread selectionThread() {
+        return selectionThread;
+    }
+
+    /**
+     * Returns the number of the mail box the session is known by in the mail office
+     *
+     * @return the number of the mail box; -1 if it hasn't been given one
+     */
+    public int boxNumber() {
+        return boxNumber;
+    }
+
+    /**
+     * Records the number of the mail box the session is known by, so that the box could be removed given only the key
+     *
+     * @param boxNumber of the mail box; -1 once it's removed
+     */
+    void setBoxNumber(int boxNumber) {
+        this.boxNumber = boxNumber;
+    }
+
+    /**
+     * Records that the client has just sent something
+     */
+    public void touch() {
+        lastActive = System.nanoTime();
+    }
+
+    /**
+     * Returns the time of the last read from the connection
+     *
+     * @return the time in nanoseconds as given by {@link System#nanoTime()}
+     */
+    public long lastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Opens the mail box of the session if it isn't already open
+     *
+     * @param capacity     maximum number of messages waiting in the mail box
+     * @param byteCapacity maximum number of bytes of the messages waiting in the mail box
+     */
+    public synchronized void openMailBox(int capacity, long byteCapacity) {
+        if (mailBox == null)
+            mailBox = new MailBox(capacity, byteCapacity);
+    }
+
+    /**
+     * Returns the mail box of the session
+     *
+     * @return the mail box of the session; null if it hasn't been opened
+     */
+    public MailBox mailBox() {
+        return mailBox;
+    }
+
+    /**
+     * Releases every message that is waiting in the mail box, along with the messages of an unfinished write
+     */
+    public void discardMail() {
+        discarded = true;
+        releaseUnsent();
+
+        MailBox box = mailBox;
+        if (box == null) return;
+
+        Message m;
+        while ((m = box.poll()) != null) {
+            m.release();
+        }
+    }
+
+    /**
+     * Releases the messages of an unfinished write once the mail has been discarded.
+     * If a thread is writing at the moment, it's left to that thread to call this again once it stops
+     */
+    void releaseUnsent() {
+        if (!discarded || !startWriting()) return;
+
+        if (unsent != null) {
+            unsent.release();
+            unsent = null;
+        }
+        stopWriting();
+    }
+
+    /**
+     * Claims the writing to the connection, so that messages are never written by two threads at once
+     *
+     * @return true if the calling thread could write; false if another thread is already writing
+     */
+    boolean startWriting() {
+        return writing.compareAndSet(false, true);
+    }
+
+    /**
+     * Gives up the writing to the connection
+     */
+    void stopWriting() {
+        writing.set(false);
+    }
+
+    /**
+     * Returns the messages that are still to be written from the last write
+     *
+     * @return the unsent messages; null if everything was written
+     */
+    PendingWrite unsent() {
+        return unsent;
+    }
+
+    /**
+     * Keeps the messages that couldn't be written so that the writing resumes from them
+     *
+     * @param unsent messages that are still to be written; null if everything was written
+     */
+    void keepUnsent(PendingWrite unsent) {
+        this.unsent = unsent;
+    }
+}
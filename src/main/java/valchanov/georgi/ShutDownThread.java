@@ -59,6 +59,15 @@ public class ShutDownThread extends Thread {
         isRunning = false;
     }
 
+    /**
+     * Makes the thread log its exceptions with an existing logger
+     *
+     * @param logger to be used by the thread
+     */
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
     public void start() {
         isRunning = true;
         super.start();
@@ -0,0 +1,386 @@
+package valchanov.georgi;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the messages in the messages table of the database.
+ * A batch is inserted with a single JDBC batch in a single transaction
+ */
+public class SqlMessageStore implements MessageStore {
+
+    /**
+     * Used to save a message to the database
+     */
+    private static final String SAVE_MESSAGE = "INSERT INTO messages (mid, tid, uid, m_cont, m_time) VALUES(?,?,?,?,?)";
+
+    /**
+     * Used to read the latest messages of a thread; a range scan of the (tid, mid) index
+     */
+    private static final String GET_HISTORY =
+            "SELECT mid, uid, m_cont, m_time FROM messages WHERE tid = ? AND mid < ? ORDER BY mid DESC LIMIT ?";
+
+    /**
+     * Used to find everyone who has posted in each thread
+     */
+    private static final String GET_MEMBERS = "SELECT DISTINCT tid, uid FROM messages ORDER BY tid";
+
+    /**
+     * Used to find the threads whose messages could be archived
+     */
+    private static final String GET_THREADS = "SELECT tid FROM rooms";
+
+    /**
+     * Used to read the oldest messages of a thread that are to be archived; a range scan of the (tid, mid) index
+     */
+    private static final String GET_OLD_MESSAGES =
+            "SELECT mid, uid, m_cont, m_time FROM messages WHERE tid = ? AND mid < ? ORDER BY mid LIMIT ?";
+
+    /**
+     * Used to delete an archived message; goes through the (tid, mid) index, which an upgraded table has
+     * instead of a primary key on the id
+     */
+    private static final String DELETE_MESSAGE = "DELETE FROM messages WHERE tid = ? AND mid = ?";
+
+    /**
+     * Used to add the ids to a table that was created before the messages had them
+     */
+    private static final String ADD_ID = "ALTER TABLE messages ADD COLUMN mid bigint";
+    /**
+     * Used to read the key of every row of such a table, the oldest message first
+     */
+    private static final String GET_KEYS = "SELECT tid, uid, m_time FROM messages ORDER BY m_time";
+    /**
+     * Used to give a row of such a table its id
+     */
+    private static final String SET_ID = "UPDATE messages SET mid = ? WHERE tid = ? AND uid = ? AND m_time = ?";
+    /**
+     * Used to page through a thread and archive it by the ids
+     */
+    private static final String CREATE_INDEX = "CREATE UNIQUE INDEX messages_by_thread ON messages (tid, mid)";
+
+    /**
+     * Number of rows updated with a single JDBC batch while a table is upgraded
+     */
+    private static final int UPGRADE_BATCH = 1024;
+
+    /**
+     * Number of messages that are archived in a single transaction, so the writing connection is only held briefly
+     */
+    private static final int ARCHIVE_CHUNK = 4096;
+
+    private final ConnectionPool readPool;
+    private final ConnectionPool writePool;
+
+    /**
+     * Creates a new store
+     *
+     * @param readPool  of connections that the messages are read on
+     * @param writePool of connections that the messages are written on
+     */
+    public SqlMessageStore(ConnectionPool readPool, ConnectionPool writePool) {
+        this.readPool = readPool;
+        this.writePool = writePool;
+    }
+
+    /**
+     * Creates a new store, upgrading the messages table first if it was created before the messages had ids
+     *
+     * @param readPool  of connections that the messages are read on
+     * @param writePool of connections that the messages are written on
+     * @return the store
+     * @throws IOException if the table could not be upgraded
+     */
+    public static SqlMessageStore open(ConnectionPool readPool, ConnectionPool writePool) throws IOException {
+        SqlMessageStore store = new SqlMessageStore(readPool, writePool);
+        try {
+            if (!store.hasIDs()) store.upgrade();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return store;
+    }
+
+    @Override
+    public void append(List<StoredMessage> batch) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = writePool.acquire()) {
+            Connection connection = pooled.connection();
+            PreparedStatement saveMessage = pooled.prepare(SAVE_MESSAGE);
+
+            connection.setAutoCommit(false);
+            try {
+                for (StoredMessage message : batch) {
+                    saveMessage.setLong(1, message.getMessageID());
+                    saveMessage.setInt(2, message.getThreadID());
+                    saveMessage.setInt(3, message.getSenderID());
+                    saveMessage.setString(4, message.getContents());
+                    saveMessage.setTimestamp(5, new Timestamp(message.getDate()));
+                    saveMessage.addBatch();
+                }
+                saveMessage.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                saveMessage.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void history(int threadID, long before, int limit, Consumer<StoredMessage> consumer) throws IOException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire()) {
+            PreparedStatement getHistory = connection.prepare(GET_HISTORY);
+            getHistory.setInt(1, threadID);
+            getHistory.setLong(2, before);
+            getHistory.setInt(3, limit);
+            try (ResultSet rs = getHistory.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(readMessage(threadID, rs));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void loadMembers(RoomMembers members) throws IOException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire();
+             ResultSet rs = connection.prepare(GET_MEMBERS).executeQuery()) {
+            RoomMembers.Loader loader = members.loader();
+            while (rs.next()) {
+                loader.add(rs.getInt(1), rs.getInt(2));
+            }
+            loader.finish();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Moves the messages received before a message out of the messages table into an archive, a thread at a time.
+     * The messages are moved a chunk at a time; a chunk is written to the archive and synced before it's deleted
+     * from the table in a short transaction, so a crash in between leaves it in both places rather than in neither
+     *
+     * @param before  id of the message that the archived messages have smaller ids than
+     * @param archive that the messages are moved to
+     * @return the number of archived messages
+     * @throws IOException if the messages could not be read, archived or deleted
+     */
+    public int archive(long before, MessageArchive archive) throws IOException {
+        List<Integer> threadIDs = new ArrayList<>();
+        try (ConnectionPool.PooledConnection connection = readPool.acquire();
+             ResultSet rs = connection.prepare(GET_THREADS).executeQuery()) {
+            while (rs.next()) {
+                threadIDs.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+
+        int archived = 0;
+        for (int threadID : threadIDs) {
+            archived += archiveThread(threadID, before, archive);
+        }
+        return archived;
+    }
+
+    /**
+     * Moves the messages of a thread received before a message out of the messages table into an archive,
+     * a chunk at a time
+     *
+     * @param threadID of the thread
+     * @param before   id of the message that the archived messages have smaller ids than
+     * @param archive  that the messages are moved to
+     * @return the number of archived messages
+     * @throws IOException if the messages could not be read, archived or deleted
+     */
+    private int archiveThread(int threadID, long before, MessageArchive archive) throws IOException {
+        int archived = 0;
+        while (true) {
+            List<StoredMessage> chunk = readOldMessages(threadID, before);
+            if (chunk.isEmpty()) return archived;
+
+            //the files are written and synced before the writing connection is taken, so the saver isn't kept waiting
+            write(chunk, archive);
+            delete(chunk);
+
+            archived += chunk.size();
+            if (chunk.size() < ARCHIVE_CHUNK) return archived;
+        }
+    }
+
+    /**
+     * Reads the oldest chunk of the messages of a thread that are to be archived
+     *
+     * @param threadID of the thread
+     * @param before   id of the message that the archived messages have smaller ids than
+     * @return at most {@link #ARCHIVE_CHUNK} messages, from the oldest to the newest one
+     * @throws IOException if the messages could not be read
+     */
+    private List<StoredMessage> readOldMessages(int threadID, long before) throws IOException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire()) {
+            PreparedStatement getOldMessages = connection.prepare(GET_OLD_MESSAGES);
+            getOldMessages.setInt(1, threadID);
+            getOldMessages.setLong(2, before);
+            getOldMessages.setInt(3, ARCHIVE_CHUNK);
+
+            List<StoredMessage> messages = new ArrayList<>();
+            try (ResultSet rs = getOldMessages.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(readMessage(threadID, rs));
+                }
+            }
+            return messages;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Writes messages of a thread to the archive, a segment for each month they were received in
+     *
+     * @param messages from the oldest to the newest one
+     * @param archive  that the messages are written to
+     * @throws IOException if the messages could not be archived
+     */
+    private static void write(List<StoredMessage> messages, MessageArchive archive) throws IOException {
+        int threadID = messages.get(0).getThreadID();
+        int from = 0;
+        YearMonth month = MessageArchive.monthOf(messages.get(0).getMessageID());
+        for (int i = 1; i <= messages.size(); i++) {
+            YearMonth sent = i < messages.size() ? MessageArchive.monthOf(messages.get(i).getMessageID()) : null;
+            if (!month.equals(sent)) {
+                archive.write(threadID, month, messages.subList(from, i));
+                from = i;
+                month = sent;
+            }
+        }
+    }
+
+    /**
+     * Deletes archived messages from the table in a single transaction
+     *
+     * @param messages that were archived
+     * @throws IOException if the messages could not be deleted
+     */
+    private void delete(List<StoredMessage> messages) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = writePool.acquire()) {
+            Connection connection = pooled.connection();
+            PreparedStatement deleteMessage = pooled.prepare(DELETE_MESSAGE);
+
+            connection.setAutoCommit(false);
+            try {
+                for (StoredMessage message : messages) {
+                    deleteMessage.setInt(1, message.getThreadID());
+                    deleteMessage.setLong(2, message.getMessageID());
+                    deleteMessage.addBatch();
+                }
+                deleteMessage.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                deleteMessage.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Checks whether the messages table has the ids
+     *
+     * @return true if the table has the mid column
+     * @throws SQLException if the database could not be asked
+     */
+    private boolean hasIDs() throws SQLException {
+        try (ConnectionPool.PooledConnection connection = readPool.acquire();
+             ResultSet rs = connection.connection().getMetaData().getColumns(null, null, "messages", "mid")) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Adds the mid column to a messages table that was created before the messages had ids, numbering the stored
+     * messages in the order of their dates, and creates the (tid, mid) index, all in a single transaction
+     *
+     * @throws SQLException if the table could not be upgraded
+     */
+    private void upgrade() throws SQLException {
+        try (ConnectionPool.PooledConnection pooled = writePool.acquire()) {
+            Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            try (Statement ddl = connection.createStatement()) {
+                ddl.execute(ADD_ID);
+
+                //the keys are read before the rows are updated, so the scan doesn't see its own updates
+                List<Object[]> keys = new ArrayList<>();
+                try (ResultSet rs = pooled.prepare(GET_KEYS).executeQuery()) {
+                    while (rs.next()) {
+                        keys.add(new Object[]{rs.getInt(1), rs.getInt(2), rs.getTimestamp(3)});
+                    }
+                }
+
+                //the id of a date, or the next free one if an earlier message has taken it
+                PreparedStatement setID = pooled.prepare(SET_ID);
+                long previous = -1;
+                for (int i = 0; i < keys.size(); i++) {
+                    Timestamp sent = (Timestamp) keys.get(i)[2];
+                    previous = Math.max(MessageIdGenerator.firstAt(sent.getTime()), previous + 1);
+                    setID.setLong(1, previous);
+                    setID.setInt(2, (Integer) keys.get(i)[0]);
+                    setID.setInt(3, (Integer) keys.get(i)[1]);
+                    setID.setTimestamp(4, sent);
+                    setID.addBatch();
+                    if ((i + 1) % UPGRADE_BATCH == 0) setID.executeBatch();
+                }
+                setID.executeBatch();
+
+                ddl.execute(CREATE_INDEX);
+                connection.commit();
+                System.out.println("Gave the ids to " + keys.size() + " messages of the messages table");
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Reads a message of a thread from a row of the mid, uid, m_cont and m_time columns
+     *
+     * @param threadID of the thread
+     * @param rs       positioned at the row
+     * @return the message of the row
+     * @throws SQLException if the row could not be read
+     */
+    private static StoredMessage readMessage(int threadID, ResultSet rs) throws SQLException {
+        return new StoredMessage(rs.getLong(1), threadID, rs.getInt(2), rs.getTimestamp(4).getTime(), rs.getString(3));
+    }
+
+    /**
+     * The pools belong to the reader factory, so nothing is closed here
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,81 @@
+package valchanov.georgi;
+
+/**
+ * Sets up the connections to a SQLite database for a busy chat server.<br>
+ * The database is switched to write-ahead logging, so that reading never waits for writing. All of the writing
+ * goes through a single connection, since SQLite allows only one writer at a time anyway, and the reading is done
+ * by a pool of read only connections. Every connection syncs to the disk only at checkpoints and keeps a large
+ * page cache and a memory mapped view of the database file
+ */
+public final class SqliteProfile {
+
+    /**
+     * Pragmas executed on every connection
+     */
+    private static final String[] PRAGMAS = {
+            //the journal mode is kept in the database file, so it is set once by the first connection for good
+            "PRAGMA journal_mode = WAL",
+            //in WAL mode NORMAL loses no data on a crash of the process, only on a power loss
+            "PRAGMA synchronous = NORMAL",
+            //wait for a lock instead of failing right away
+            "PRAGMA busy_timeout = 5000",
+            //16 MiB of page cache (a negative value is in KiB)
+            "PRAGMA cache_size = -16384",
+            //256 MiB of the database file is read through a memory map instead of system calls
+            "PRAGMA mmap_size = 268435456",
+            "PRAGMA temp_store = MEMORY"
+    };
+
+    /**
+     * Makes a connection refuse to write
+     */
+    private static final String READ_ONLY = "PRAGMA query_only = ON";
+
+    private SqliteProfile() {
+    }
+
+    /**
+     * Returns true if a database url is one of a SQLite database
+     *
+     * @param url of the database
+     * @return true for a SQLite database
+     */
+    public static boolean appliesTo(String url) {
+        return url.startsWith("jdbc:sqlite:");
+    }
+
+    /**
+     * Creates the pool of the single connection that does all of the writing
+     *
+     * @param driver         class name of the JDBC driver
+     * @param url            of the database
+     * @param acquireTimeout time in milliseconds that a thread waits for the connection
+     * @return a pool of a single connection
+     * @throws ClassNotFoundException if the driver could not be loaded
+     */
+    public static ConnectionPool writer(String driver, String url, long acquireTimeout) throws ClassNotFoundException {
+        ConnectionPool pool = new ConnectionPool(driver, url, null, null, 1, acquireTimeout);
+        pool.setInitStatements(PRAGMAS);
+        return pool;
+    }
+
+    /**
+     * Creates a pool of read only connections
+     *
+     * @param driver         class name of the JDBC driver
+     * @param url            of the database
+     * @param size           number of connections
+     * @param acquireTimeout time in milliseconds that a thread waits for a connection
+     * @return a pool of read only connections
+     * @throws ClassNotFoundException if the driver could not be loaded
+     */
+    public static ConnectionPool readers(String driver, String url, int size, long acquireTimeout) throws ClassNotFoundException {
+        ConnectionPool pool = new ConnectionPool(driver, url, null, null, size, acquireTimeout);
+
+        String[] statements = new String[PRAGMAS.length + 1];
+        System.arraycopy(PRAGMAS, 0, statements, 0, PRAGMAS.length);
+        statements[PRAGMAS.length] = READ_ONLY;
+        pool.setInitStatements(statements);
+        return pool;
+    }
+}
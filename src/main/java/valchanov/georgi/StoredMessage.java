@@ -0,0 +1,50 @@
+package valchanov.georgi;
+
+/**
+ * A chat message as it's kept by a {@link MessageStore}
+ */
+public final class StoredMessage {
+
+    private final long messageID;
+    private final int threadID;
+    private final int senderID;
+    private final long date;
+    private final String contents;
+
+    /**
+     * Creates a new stored message
+     *
+     * @param messageID that the server gave the message when it was received
+     * @param threadID  of the thread the message was posted in
+     * @param senderID  of the sender
+     * @param date      of the message in milliseconds since the epoch
+     * @param contents  of the message
+     */
+    public StoredMessage(long messageID, int threadID, int senderID, long date, String contents) {
+        this.messageID = messageID;
+        this.threadID = threadID;
+        this.senderID = senderID;
+        this.date = date;
+        this.contents = contents;
+    }
+
+    public long getMessageID() {
+        return messageID;
+    }
+
+    public int getThreadID() {
+        return threadID;
+    }
+
+    public int getSenderID() {
+        return senderID;
+    }
+
+    public long getDate() {
+        return date;
+    }
+
+    public String getContents() {
+        return contents;
+    }
+}
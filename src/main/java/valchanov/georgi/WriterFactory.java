@@ -3,64 +3,153 @@ package valchanov.georgi;
 import valchanov.georgi.messages.Message;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
+import java.util.*;
 
 public class WriterFactory {
 
+    /**
+     * Maximum number of messages put together in a single gathering write
+     */
+    private static final int GATHER_LIMIT = 64;
+
+    /**
+     * Maximum number of gathering writes done on each selection of a socket
+     */
+    private static final int WRITE_ROUNDS = 8;
+
     /**
      * A consumer that will be called when an error occurs while writing
      */
     private ErrorConsumer onWriteError;
 
+    /**
+     * True if the writing is done on the selection thread
+     */
+    private boolean inline;
+
     /**
      * Creates a runnable object that takes a selection key and writes all of its queued messages.
-     * This runnable blocks the access to the selection key's queue once it is acquired.
-     * The execution of the runnable is highly dependent on an {@link Queue} being attacked to the selector
+     * The queued messages are written together with a single gathering write. If the socket can't take all of them,
+     * the rest is kept in the session and the writing resumes from it the next time the socket is writable.
+     * Each message is released once it has been fully written.
+     * The execution of the runnable is highly dependent on a {@link Session} with an open mail box being attached to the key.
+     * <p>
+     * If writing is done inline, the messages are written right away on the calling (selection) thread and null is returned
      *
      * @param key    that is writable
      * @param keyOps operation of the selection key
-     * @return Runnable that executes the writing operation
+     * @return Runnable that executes the writing operation; null if the writing was done inline
      */
     public Runnable writeTo(SelectionKey key, int keyOps) {
+        if (inline) {
+            //the socket is non-blocking so writing on the selection thread is cheap
+            write(key, keyOps);
+            return null;
+        }
+
         return () -> {
             Thread.currentThread().setName("Writing message");
+            write(key, keyOps);
+        };
+    }
+
+    /**
+     * Specifies whether the writing is done right on the selection thread instead of a worker
+     *
+     * @param inline true for writing on the selection thread
+     */
+    void setInline(boolean inline) {
+        this.inline = inline;
+    }
 
-            //get a user's queue
-            Queue<Message> queue = (Queue<Message>) key.attachment();
+    /**
+     * Writes the queued messages of a key
+     *
+     * @param key    that is writable
+     * @param keyOps operation of the selection key
+     */
+    private void write(SelectionKey key, int keyOps) {
+        //get a user's queue
+        Session session = Session.of(key);
+        Queue<Message> queue = session == null ? null : session.mailBox();
 
-            //if the user has been terminated do nothing more
-            //other classes will take care of it
-            if (queue == null) {
-                return;
+        //if the user has been terminated do nothing more
+        //other classes will take care of it
+        if (queue == null) {
+            return;
+        }
+
+        //another thread is already writing to the connection; it's going to take the new messages as well
+        SelectionThread selectionThread = session.selectionThread();
+        if (!session.startWriting()) {
+            if (key.isValid()) {
+                selectionThread.addInterest(key, keyOps & ~SelectionKey.OP_WRITE);
             }
+            return;
+        }
+
+        SocketChannel socketChannel = (SocketChannel) key.channel();
 
-            SocketChannel socketChannel = (SocketChannel) key.channel();
-            Message m = null;
+        try {
+            PendingWrite batch = session.unsent();
+            //take the messages from the queue and send them until either the queue is empty or the socket is full
+            //(a sender that never lets the queue empty out gets the rest sent on the next selection)
+            for (int i = 0; i < WRITE_ROUNDS && (batch != null || !queue.isEmpty()); i++) {
+                if (batch == null) {
+                    batch = gather(queue);
+                }
 
-            //take every message from the queue and send it
-            try {
-                //stop if the queue is empty
+                //the socket can't take any more for now
+                if (!batch.writeTo(socketChannel)) break;
 
-                while ((m = queue.poll()) != null) {
+                batch = null;
+            }
+            session.keepUnsent(batch);
+        } catch (IOException e) {
+            onWriteError.accept(key, null, e);
+        } finally {
+            session.stopWriting();
+            //the connection could have been closed while writing
+            session.releaseUnsent();
 
-                    //so that if one message is to be sent to multiple recipients only one could send it at a time
-                    synchronized (m) {
-                        System.out.println("Sending a message; Type: " + m.getType() + " Sender: " + m.getSenderID() + " Contents: " + m.getContents());
-                        m.sendTo(socketChannel);
-                    }
+            //turn off the writing ops if there are no messages to be written
+            //(the ops are only added or removed, since other threads could be changing them at the same time)
+            if (key.isValid()) {
+                selectionThread.addInterest(key, keyOps & ~SelectionKey.OP_WRITE);
+                if (session.unsent() == null) {
+                    selectionThread.removeInterest(key, SelectionKey.OP_WRITE);
                 }
-            } catch (IOException e) {
-                onWriteError.accept(key, m, e);
-            } finally {
-                //turn off the writing ops since there are no messages to be written
-                if (key.isValid()) {
-                    key.interestOps(keyOps & ~SelectionKey.OP_WRITE);
-                    key.selector().wakeup();
+                //a message could have been put in the box after the writing was done
+                if (session.unsent() != null || !queue.isEmpty()) {
+                    selectionThread.addInterest(key, SelectionKey.OP_WRITE);
                 }
             }
-        };
+        }
+    }
+
+    /**
+     * Takes messages from a mail box and puts their buffers together for a gathering write
+     *
+     * @param queue of messages to be sent
+     * @return the taken messages ready to be written
+     */
+    private PendingWrite gather(Queue<Message> queue) {
+        List<ByteBuffer> buffers = new ArrayList<>();
+        List<Message> owners = new ArrayList<>();
+        Message m;
+
+        for (int i = 0; i < GATHER_LIMIT && (m = queue.poll()) != null; i++) {
+            //every receiver gets its own view of the message so there's nothing to lock
+            System.out.println("Sending a message; Type: " + m.getType() + " Sender: " + m.getSenderID() + " Contents: " + m.getContents());
+            for (ByteBuffer buffer : m.toBuffers()) {
+                buffers.add(buffer);
+                owners.add(m);
+            }
+        }
+        return new PendingWrite(buffers, owners);
     }
 
     /**
@@ -22,6 +22,10 @@ public class Client implements Runnable {
     private CountDownLatch awaitThread;
     private volatile int senderID = -1;
     private volatile int threadID = -1;
+    /**
+     * Message id to ask for the next page of history with; 0 once there are no older messages
+     */
+    private volatile long historyCursor;
 
     private SocketChannel socket;
     private InetSocketAddress serverAddress;
@@ -84,15 +88,45 @@ public class Client implements Runnable {
             awaitConnection.countDown();
         });
 
+        readingThread.onReceivingAPingMessage(m -> {
+            //let the server know the client is still there
+            try {
+                send(factory.newInstance(MessageType.PONG, senderID, noContent, unknownThread, noContent, noContent));
+            } catch (IOException e) {
+                out.println("Could not reply to the server: " + e.getMessage());
+            }
+        });
+
+        readingThread.onReceivingAHistoryMessage(m -> {
+            //the end of a page of history
+            this.historyCursor = m.getMessageID();
+            out.printf("-- %s older messages%s --\n", m.getContents(), m.getMessageID() == 0 ? ", no more" : "");
+        });
+
+        readingThread.onReceivingALeaveMessage(m ->
+                out.printf("left room: %d\n", m.getThreadID())
+        );
+
         readingThread.start();
     }
 
+    /**
+     * Sends a message to the server. The reading thread replies to pings as well,
+     * so the messages are sent one at a time to keep them from mixing on the socket
+     *
+     * @param message to be sent
+     * @throws IOException if the message could not be sent
+     */
+    private synchronized void send(Message message) throws IOException {
+        message.sendTo(socket);
+    }
+
     public void connect(int id, String password) throws IOException, InterruptedException {
         //reuse latch
         awaitConnection = new CountDownLatch(1);
 
         Message message = factory.newInstance(MessageType.CONNECT, id, password, unknownThread, noContent, noContent);
-        message.sendTo(socket);
+        send(message);
         //wait for the connect message
         awaitConnection.await();
     }
@@ -102,7 +136,7 @@ public class Client implements Runnable {
         awaitThread = new CountDownLatch(1);
 
         Message message = factory.newInstance(MessageType.NEW_THREAD, senderID, noContent, unknownThread, threadName, noContent);
-        message.sendTo(socket);
+        send(message);
         //wait for the thread message
         awaitThread.await();
     }
@@ -111,7 +145,7 @@ public class Client implements Runnable {
         //reuse latch
         awaitConnection = new CountDownLatch(1);
         Message message = factory.newInstance(MessageType.REGISTER, senderID, password, 0, "", "");
-        message.sendTo(socket);
+        send(message);
 
         //wait for the connect message
         awaitConnection.await();
@@ -123,7 +157,7 @@ public class Client implements Runnable {
 
     public void disconnect() throws IOException {
         Message message = factory.newInstance(MessageType.DISCONNECT, senderID, noContent, unknownThread, noContent, noContent);
-        message.sendTo(socket);
+        send(message);
         disconnected = true;
     }
 
@@ -133,9 +167,32 @@ public class Client implements Runnable {
         socket.close();
     }
 
+    /**
+     * Asks for a page of the current thread's history; the messages arrive as SEND messages
+     *
+     * @param before id of the message that the messages were received before; 0 for the latest ones
+     * @param limit  number of messages in the page
+     * @throws IOException if the request could not be sent
+     */
+    public void requestHistory(long before, int limit) throws IOException {
+        Message message = factory.newInstance(MessageType.HISTORY, senderID, noContent, threadID, noContent, String.valueOf(limit),
+                System.currentTimeMillis(), before);
+        send(message);
+    }
+
+    /**
+     * Leaves the current thread, so its messages are no longer received
+     *
+     * @throws IOException if the request could not be sent
+     */
+    public void leaveThread() throws IOException {
+        Message message = factory.newInstance(MessageType.LEAVE, senderID, noContent, threadID, noContent, noContent);
+        send(message);
+    }
+
     public void sendMessage(String contents) throws IOException {
         Message message = factory.newInstance(MessageType.SEND, senderID, noContent, threadID, noContent, contents);
-        message.sendTo(socket);
+        send(message);
     }
 
 
@@ -212,14 +269,21 @@ public class Client implements Runnable {
                     if (threadID > 0) break;
                 }
             }
-            out.println("Chat away (to quit just type 'quit')");
+            out.println("Chat away (to quit just type 'quit', to leave the thread 'leave', for older messages 'history')");
+            requestHistory(0, 20);
 
             while (true) {
                 line = input.nextLine();
                 if (!isStillWorking() || line.equals("quit"))
                     break;
 
-                if (!line.equals(""))
+                if (line.equals("leave")) {
+                    leaveThread();
+                    break;
+                } else if (line.equals("history")) {
+                    if (historyCursor > 0) requestHistory(historyCursor, 20);
+                    else out.println("There are no older messages");
+                } else if (!line.equals(""))
                     sendMessage(line);
             }
 
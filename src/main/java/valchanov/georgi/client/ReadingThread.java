@@ -1,6 +1,7 @@
 package valchanov.georgi.client;
 
 import valchanov.georgi.messages.Message;
+import valchanov.georgi.messages.MessageDecoder;
 import valchanov.georgi.messages.MessageFactory;
 import valchanov.georgi.ShutDownThread;
 
@@ -21,9 +22,9 @@ public class ReadingThread extends ShutDownThread {
     private Selector selector;
 
     /**
-     * used to create a message by reading it
+     * used to create messages by reading them
      */
-    private final MessageFactory factory;
+    private final MessageDecoder decoder;
 
     //all of these are handler called on receiving a certain type of message
     private Consumer<Message> onConnect;
@@ -36,6 +37,12 @@ public class ReadingThread extends ShutDownThread {
 
     private Consumer<Message> onRegister;
 
+    private Consumer<Message> onPing;
+
+    private Consumer<Message> onHistory;
+
+    private Consumer<Message> onLeave;
+
     /**
      * Creates a new thread for reading from a socket
      *
@@ -49,7 +56,7 @@ public class ReadingThread extends ShutDownThread {
         channel.configureBlocking(false);
         channel.register(selector, SelectionKey.OP_READ);
 
-        this.factory = factory;
+        this.decoder = factory.newDecoder();
     }
 
     @Override
@@ -82,14 +89,22 @@ public class ReadingThread extends ShutDownThread {
     }
 
     /**
-     * Reads a message form the channel of the selection key and uses the appropriate handler
+     * Reads the messages form the channel of the selection key and uses the appropriate handler for each one
      *
      * @param key of the channel that is going to be read
      */
     private void read(SelectionKey key) throws IOException {
+        for (Message m : decoder.readFrom((SocketChannel) key.channel())) {
+            handle(m);
+        }
+    }
 
-        Message m = factory.readFrom((SocketChannel) key.channel());
-
+    /**
+     * Passes a received message to its handler
+     *
+     * @param m message that was received
+     */
+    private void handle(Message m) {
         switch (m.getType()) {
             case NEW_THREAD:
                 onNewThread.accept(m);
@@ -100,6 +115,15 @@ public class ReadingThread extends ShutDownThread {
             case SEND:
                 onSend.accept(m);
                 break;
+            case PING:
+                if (onPing != null) onPing.accept(m);
+                break;
+            case HISTORY:
+                if (onHistory != null) onHistory.accept(m);
+                break;
+            case LEAVE:
+                if (onLeave != null) onLeave.accept(m);
+                break;
             case REGISTER:
                 onRegister.accept(m);
             case FAILURE:
@@ -152,5 +176,32 @@ public class ReadingThread extends ShutDownThread {
     public void onReceivingARegisterMessage(Consumer<Message> onRegister) {
         this.onRegister = onRegister;
     }
+
+    /**
+     * Handle used on receiving a PING message
+     *
+     * @param onPing
+     */
+    public void onReceivingAPingMessage(Consumer<Message> onPing) {
+        this.onPing = onPing;
+    }
+
+    /**
+     * Handle used on receiving a HISTORY message, i.e. the end of a page of history
+     *
+     * @param onHistory
+     */
+    public void onReceivingAHistoryMessage(Consumer<Message> onHistory) {
+        this.onHistory = onHistory;
+    }
+
+    /**
+     * Handle used on receiving a LEAVE message, i.e. the thread was left
+     *
+     * @param onLeave
+     */
+    public void onReceivingALeaveMessage(Consumer<Message> onLeave) {
+        this.onLeave = onLeave;
+    }
 }
 
@@ -1,10 +1,22 @@
 package valchanov.georgi.drivers;
 
+import valchanov.georgi.Archiver;
 import valchanov.georgi.ChatServer;
+import valchanov.georgi.ConnectionPool;
+import valchanov.georgi.CredentialCache;
+import valchanov.georgi.ExecutionMode;
+import valchanov.georgi.LogMessageStore;
+import valchanov.georgi.MailOffice;
+import valchanov.georgi.MessageSaver;
 import valchanov.georgi.ReaderFactory;
+import valchanov.georgi.RecentMessages;
+import valchanov.georgi.RoomDirectory;
+import valchanov.georgi.SelectionBalancer;
+import valchanov.georgi.SqliteProfile;
 import valchanov.georgi.WriterFactory;
 import valchanov.georgi.messages.SimpleMessage;
 
+import java.nio.file.Paths;
 import java.sql.SQLException;
 
 public class Main {
@@ -26,6 +38,43 @@ public class Main {
      * </ol>
      * <p>
      * The user and password arguments are optional depending on the database.
+     * <p>
+     * Tuning of the server is done through system properties:
+     * <ul>
+     * <li>chat.selectors - number of selection threads (1 by default)</li>
+     * <li>chat.balancing - ROUND_ROBIN or LEAST_LOADED spreading of connections across them</li>
+     * <li>chat.acceptOnSelector - true for accepting connections in batches on the first selection thread</li>
+     * <li>chat.execution - POOLED or VIRTUAL threads for executing the readers and writers</li>
+     * <li>chat.inline - true for reading and writing cheap messages right on the selection threads</li>
+     * <li>chat.mailBoxLimit - maximum number of messages waiting to be sent to a client (1024 by default)</li>
+     * <li>chat.mailBoxBytes - maximum number of bytes waiting to be sent to a client (4 MiB by default)</li>
+     * <li>chat.overflow - DROP_OLDEST, DROP_NEWEST or DISCONNECT when a client's mail box is full</li>
+     * <li>chat.dbPoolSize - number of connections to the database used by the readers (8 by default)</li>
+     * <li>chat.dbAcquireTimeout - milliseconds a reader waits for a free connection (5000 by default)</li>
+     * <li>chat.sqliteProfile - true for running a SQLite database in WAL mode with a single writing connection
+     * and chat.dbPoolSize read only ones (true by default)</li>
+     * <li>chat.messageLog - directory of an append only log that the messages are kept in instead of the database</li>
+     * <li>chat.logSegmentSize - bytes of a file of the message log (64 MiB by default)</li>
+     * <li>chat.logSync - false for not syncing the message log to the disk after every batch (true by default)</li>
+     * <li>chat.archive - directory that the old messages are moved to out of the messages table (none by default)</li>
+     * <li>chat.archiveAge - milliseconds after which a message is archived, rounded down to whole months
+     * (30 days by default)</li>
+     * <li>chat.archiveInterval - milliseconds between two runs of the archiver (1 hour by default)</li>
+     * <li>chat.durability - AFTER_COMMIT or AFTER_ENQUEUE; whether a relayed message is sent on once it's saved
+     * or once it's queued for saving</li>
+     * <li>chat.saveBatch - maximum number of messages saved in a single transaction (256 by default)</li>
+     * <li>chat.saveDelay - milliseconds that a batch waits to be filled before it's saved (5 by default)</li>
+     * <li>chat.authCacheSize - number of users whose checked credentials are remembered (65536 by default, 0 for none)</li>
+     * <li>chat.authCacheTtl - milliseconds that a verified password is remembered (10 minutes by default)</li>
+     * <li>chat.authFailureTtl - milliseconds that a failed attempt to connect is remembered (30 seconds by default)</li>
+     * <li>chat.recentMessages - number of the latest messages of a chat thread kept in memory (100 by default)</li>
+     * <li>chat.recentRooms - number of chat threads that have their latest messages kept (1024 by default)</li>
+     * <li>chat.recentIdle - milliseconds after which a quiet chat thread loses its kept messages (10 minutes by default)</li>
+     * <li>chat.roomCacheSize - number of chat thread ids remembered by their names (16384 by default, 0 for none)</li>
+     * <li>chat.nodeId - id of this server between 0 and 1023, unique among the servers sharing a database (0 by default)</li>
+     * <li>chat.idleTimeout - milliseconds without any traffic after which a client is disconnected
+     * (0 by default, i.e. never; e.g. 300000 for 5 minutes)</li>
+     * </ul>
      *
      * @param args to the process
      */
@@ -40,15 +89,33 @@ public class Main {
 
             SimpleMessage m = new SimpleMessage();
 
-            ReaderFactory rf = null;
-            if (args.length == 5) {
-                rf = ReaderFactory.newInstance(args[3], args[4], m);
+            int poolSize = Integer.getInteger("chat.dbPoolSize", ConnectionPool.DEFAULT_SIZE);
+            long acquireTimeout = Long.getLong("chat.dbAcquireTimeout", ConnectionPool.DEFAULT_ACQUIRE_TIMEOUT);
+
+            ConnectionPool readPool = null;
+            ConnectionPool writePool = null;
+            if (args.length == 5 && SqliteProfile.appliesTo(args[4]) && Boolean.parseBoolean(System.getProperty("chat.sqliteProfile", "true"))) {
+                readPool = SqliteProfile.readers(args[3], args[4], poolSize, acquireTimeout);
+                writePool = SqliteProfile.writer(args[3], args[4], acquireTimeout);
+            } else if (args.length == 5) {
+                readPool = writePool = new ConnectionPool(args[3], args[4], null, null, poolSize, acquireTimeout);
             } else if (args.length == 7) {
-                rf = ReaderFactory.newInstance(args[3], args[4], args[5], args[6], m);
+                readPool = writePool = new ConnectionPool(args[3], args[4], args[5], args[6], poolSize, acquireTimeout);
             } else {
                 usage();
             }
 
+            ReaderFactory rf;
+            String messageLog = System.getProperty("chat.messageLog");
+            if (messageLog != null) {
+                LogMessageStore store = new LogMessageStore(Paths.get(messageLog),
+                        Integer.getInteger("chat.logSegmentSize", LogMessageStore.DEFAULT_SEGMENT_SIZE));
+                store.setSync(Boolean.parseBoolean(System.getProperty("chat.logSync", "true")));
+                rf = new ReaderFactory(readPool, writePool, store, m);
+            } else {
+                rf = new ReaderFactory(readPool, writePool, m);
+            }
+
 //            "jdbc:sqlite:" + Paths.get("./db/messages.db").toAbsolutePath();
 
 
@@ -56,6 +123,29 @@ public class Main {
             WriterFactory wf = new WriterFactory();
             ChatServer cs = new ChatServer(args[1], Integer.parseInt(args[2]), rf, wf);
             cs.setCrashLogFile(args[0], "yyyy.MM.dd G 'at' HH:mm:ss z");
+            cs.setSelectionThreads(Integer.getInteger("chat.selectors", 1),
+                    SelectionBalancer.Policy.valueOf(System.getProperty("chat.balancing", "ROUND_ROBIN")));
+            cs.setAcceptOnSelector(Boolean.getBoolean("chat.acceptOnSelector"));
+            cs.setExecutionMode(ExecutionMode.valueOf(System.getProperty("chat.execution", "POOLED")));
+            cs.setInlineHandling(Boolean.getBoolean("chat.inline"));
+            cs.setMailBoxLimit(Integer.getInteger("chat.mailBoxLimit", MailOffice.DEFAULT_CAPACITY),
+                    Long.getLong("chat.mailBoxBytes", MailOffice.DEFAULT_BYTE_CAPACITY),
+                    MailOffice.Overflow.valueOf(System.getProperty("chat.overflow", "DROP_OLDEST")));
+            cs.setPersistence(MessageSaver.Durability.valueOf(System.getProperty("chat.durability", "AFTER_COMMIT")),
+                    Integer.getInteger("chat.saveBatch", 256), Long.getLong("chat.saveDelay", 5));
+            cs.setCredentialCache(Integer.getInteger("chat.authCacheSize", CredentialCache.DEFAULT_SIZE),
+                    Long.getLong("chat.authCacheTtl", CredentialCache.DEFAULT_TIME_TO_LIVE),
+                    Long.getLong("chat.authFailureTtl", CredentialCache.DEFAULT_FAILURE_TIME_TO_LIVE));
+            cs.setRecentMessages(Integer.getInteger("chat.recentMessages", RecentMessages.DEFAULT_PER_ROOM),
+                    Integer.getInteger("chat.recentRooms", RecentMessages.DEFAULT_ROOMS),
+                    Long.getLong("chat.recentIdle", RecentMessages.DEFAULT_IDLE_TIME));
+            cs.setRoomDirectory(Integer.getInteger("chat.roomCacheSize", RoomDirectory.DEFAULT_SIZE));
+            cs.setNodeID(Integer.getInteger("chat.nodeId", 0));
+            cs.setIdleTimeout(Long.getLong("chat.idleTimeout", 0));
+            String archive = System.getProperty("chat.archive");
+            if (archive != null)
+                cs.setArchive(Paths.get(archive), Long.getLong("chat.archiveAge", Archiver.DEFAULT_AGE),
+                        Long.getLong("chat.archiveInterval", Archiver.DEFAULT_INTERVAL));
 
             cs.start();
 
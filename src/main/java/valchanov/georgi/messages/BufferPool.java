@@ -0,0 +1,138 @@
+package valchanov.georgi.messages;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct {@link ByteBuffer}s sorted in classes by size.<br>
+ * Each class holds buffers of a single power of two capacity. A leased buffer has the capacity of the smallest class
+ * that fits the requested size. Returned buffers are kept for reuse up to a memory budget per class,
+ * anything over it is left to the garbage collector
+ */
+public class BufferPool {
+
+    /**
+     * Capacity of the smallest class
+     */
+    private static final int MIN_CLASS_SIZE = 64;
+
+    /**
+     * Number of classes; the biggest class holds buffers of 128 KiB
+     */
+    private static final int CLASSES = 12;
+
+    /**
+     * Default memory kept for reuse by every class
+     */
+    private static final int DEFAULT_CLASS_BUDGET = 1 << 20;
+
+    /**
+     * Free buffers of each class
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+
+    /**
+     * Number of free buffers in each class
+     */
+    private final AtomicInteger[] freeCount;
+
+    /**
+     * Maximum number of free buffers kept by each class
+     */
+    private final int[] maxFree;
+
+    /**
+     * Creates a new pool that keeps up to 1 MiB of free buffers in each class
+     */
+    public BufferPool() {
+        this(DEFAULT_CLASS_BUDGET);
+    }
+
+    /**
+     * Creates a new pool
+     *
+     * @param classBudget bytes of free buffers kept by each class
+     */
+    public BufferPool(int classBudget) {
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<ByteBuffer>[] queues = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[CLASSES];
+        free = queues;
+        freeCount = new AtomicInteger[CLASSES];
+        maxFree = new int[CLASSES];
+
+        for (int i = 0; i < CLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+            //always keep a few of the big ones
+            maxFree[i] = Math.max(4, classBudget / classSize(i));
+        }
+    }
+
+    /**
+     * Leases a buffer that could hold the requested number of bytes.
+     * The buffer's position is 0 and its limit is the requested size
+     *
+     * @param size of the buffer
+     * @return a buffer for the requested size
+     */
+    public ByteBuffer lease(int size) {
+        int c = classOf(size);
+        //too big to be pooled
+        if (c == CLASSES) {
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        ByteBuffer buffer = free[c].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(classSize(c));
+        } else {
+            freeCount[c].decrementAndGet();
+        }
+
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The buffer must not be used after it's returned
+     *
+     * @param buffer that was leased from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        int c = classOf(buffer.capacity());
+        //only buffers that were pooled go back
+        if (c == CLASSES || classSize(c) != buffer.capacity() || !buffer.isDirect()) {
+            return;
+        }
+
+        if (freeCount[c].incrementAndGet() <= maxFree[c]) {
+            free[c].offer(buffer);
+        } else {
+            freeCount[c].decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the class of the smallest buffers that fit a size
+     *
+     * @param size to be fitted
+     * @return index of the class; CLASSES if no class fits it
+     */
+    private static int classOf(int size) {
+        int c = 0;
+        while (c < CLASSES && classSize(c) < size) c++;
+
+        return c;
+    }
+
+    /**
+     * Returns the capacity of the buffers of a class
+     *
+     * @param c index of the class
+     * @return capacity of the buffers of the class
+     */
+    private static int classSize(int c) {
+        return MIN_CLASS_SIZE << c;
+    }
+}
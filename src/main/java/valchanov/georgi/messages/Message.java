@@ -1,6 +1,7 @@
 package valchanov.georgi.messages;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 /**
@@ -9,13 +10,43 @@ import java.nio.channels.SocketChannel;
 public interface Message {
 
     /**
-     * Sends the message to a receiving socket
+     * Sends the message to a receiving socket.
+     * The whole message is sent before returning; on a non-blocking channel the calling thread waits
+     * until the socket can take more instead of spinning
      *
      * @param receiver the {@link SocketChannel} that is going to receive the message
      * @throws IOException if something occurs while sending
      */
     void sendTo(SocketChannel receiver) throws IOException;
 
+    /**
+     * Returns the encoded message as buffers that are ready to be written to a channel.
+     * Each call returns new buffers, so writing them doesn't affect the message
+     *
+     * @return the encoded message
+     */
+    ByteBuffer[] toBuffers();
+
+    /**
+     * Returns the number of bytes of the encoded message
+     *
+     * @return the length of the encoded message
+     */
+    int length();
+
+    /**
+     * Adds a reference to the message. Every added reference has to be released once it's no longer needed
+     *
+     * @return the same message
+     */
+    Message retain();
+
+    /**
+     * Releases a reference to the message. Once the last reference is released the memory of the message
+     * could be reused, so the message must not be used by whoever released it
+     */
+    void release();
+
     /**
      * Returns the {@link MessageType} of the message
      *
@@ -30,6 +61,14 @@ public interface Message {
      */
     long getDate();
 
+    /**
+     * Returns the id that the server gave the message when it was received; 0 if it has none.
+     * The ids of the messages grow with the time they were received at
+     *
+     * @return the id of the message
+     */
+    long getMessageID();
+
     /**
      * Returns an id of the sender
      *
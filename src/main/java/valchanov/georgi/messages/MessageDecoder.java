@@ -0,0 +1,23 @@
+package valchanov.georgi.messages;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+
+/**
+ * Decodes messages from a stream of bytes that could arrive split or joined in any way.
+ * A decoder keeps the bytes of an incomplete message until the rest of it arrives,
+ * so each connection needs a decoder of its own
+ */
+public interface MessageDecoder {
+
+    /**
+     * Reads everything that is available from a sender and returns every message that was completed.
+     * Bytes of a message that is not yet complete are kept for the next read
+     *
+     * @param sender the channel that is sending the messages
+     * @return the completed messages in the order they were sent; empty if none was completed
+     * @throws IOException if the sender has closed the connection or a malformed message was received
+     */
+    List<Message> readFrom(ReadableByteChannel sender) throws IOException;
+}
@@ -14,6 +14,21 @@ public interface MessageFactory {
      */
     Message newInstance(MessageType type, int senderID, String password, int threadID, String threadName, String contents);
 
+    /**
+     * Creates new instances of the message with a date of its own, e.g. for a message that was sent earlier
+     *
+     * @return a new message instance
+     */
+    Message newInstance(MessageType type, int senderID, String password, int threadID, String threadName, String contents, long date);
+
+    /**
+     * Creates new instances of the message with a date and an id of its own, e.g. for a message that was received
+     * by the server
+     *
+     * @return a new message instance
+     */
+    Message newInstance(MessageType type, int senderID, String password, int threadID, String threadName, String contents, long date, long messageID);
+
     /**
      * Reads a message from a sender
      *
@@ -21,4 +36,11 @@ public interface MessageFactory {
      * @throws IOException if something occurs while receiving
      */
     Message readFrom(SocketChannel sender) throws IOException;
+
+    /**
+     * Creates a new decoder for reading messages from a single connection
+     *
+     * @return a new decoder
+     */
+    MessageDecoder newDecoder();
 }
@@ -28,6 +28,25 @@ public enum MessageType {
      * Used to indicate that a client request was unsuccessful.
      */
     FAILURE,
+    /**
+     * Used to check whether the other side of a quiet connection is still there(the other side replies with a PONG).
+     */
+    PING,
+    /**
+     * Used as a reply to a PING.
+     */
+    PONG,
+    /**
+     * Used when a client asks for the messages of a chat thread received before a message(the message id of the request).
+     * The reply is the messages as SEND messages, from the newest to the oldest, followed by a HISTORY message
+     * whose message id is the one to ask for the next page with(0 if there are no more) and whose contents is
+     * the number of messages sent.
+     */
+    HISTORY,
+    /**
+     * Used when a client leaves a chat thread(both request and reply have this type).
+     */
+    LEAVE,
     /**
      * Used when a client send a message with an unknown type.
      */
@@ -2,7 +2,13 @@ package valchanov.georgi.messages;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents an implementation of a chat server message.
@@ -13,9 +19,10 @@ import java.nio.channels.SocketChannel;
  * <pre>
  * message type(byte)
  * message Length(int)
- * senderID(byte)
+ * senderID(int)
  * threadID(short)
  * send date(contain as a timestamp (long))
+ * messageID(long, given by the server; 0 until then)
  * </pre>
  * <p>
  * the body contains optional field like a password or a chat thread name
@@ -25,50 +32,101 @@ import java.nio.channels.SocketChannel;
  * The Class also doubles as it's own factory being able to create a message by reading from a socket channel
  * or by filling in the fields in the new instance method. The method takes care of the optional fields
  * if they are not needed
+ * <p>
+ * Once created, a message never changes. The header and the body are kept in a single read-only buffer,
+ * so one message could be sent to many receivers at the same time without any locking.
+ * The buffer is leased from a {@link BufferPool} and goes back to it when the last reference to the message is released
  */
 public class SimpleMessage implements Message, MessageFactory {
 
-    private static final byte HEADER_SIZE = 16;
+    private static final byte HEADER_SIZE = 27;
     private static final byte PASSWORD_SIZE = 8;
     private static final byte THREAD_NAME_SIZE = 16;
+    /**
+     * Biggest body a received message could have; anything bigger is considered malformed
+     */
+    private static final int MAX_BODY_SIZE = 1 << 16;
 
 
     //offsets from the begging of the header to the specific information
     private static final byte type = 0;
     private static final byte messageLen = 1;
     private static final byte senderID = 5;
-    private static final byte threadID = 6;
-    private static final byte sendDate = 8;
+    private static final byte threadID = 9;
+    private static final byte sendDate = 11;
+    private static final byte messageID = 19;
     //offsets in the body
     private static final byte pass = 0;
     private static final byte threadName = 0;
 
-    //message related variables
-    private ByteBuffer header;
-    private ByteBuffer body;
+    /**
+     * The encoded message: the header followed by the body.
+     * Its position and limit never change; everything reading it uses absolute positions or its own view of it
+     */
+    private final ByteBuffer frame;
+
+    /**
+     * The buffer leased for the frame; it's returned to the pool once the message is released
+     */
+    private final ByteBuffer leased;
+
+    /**
+     * Pool that the buffers of the messages are leased from
+     */
+    private final BufferPool pool;
+
+    /**
+     * Number of references to the message
+     */
+    private final AtomicInteger references;
 
     /**
-     * Creates a new Simple message from the given head and buffer
+     * Creates a new Simple message from an encoded frame
      *
-     * @param header of the message
-     * @param body   of the message
+     * @param frame holding the header and the body of the message from position 0 to its limit
+     * @param pool  that the frame was leased from
      */
-    private SimpleMessage(ByteBuffer header, ByteBuffer body) {
-        this.header = header;
-        this.body = body;
+    private SimpleMessage(ByteBuffer frame, BufferPool pool) {
+        this.frame = frame.asReadOnlyBuffer();
+        this.leased = frame;
+        this.pool = pool;
+        this.references = new AtomicInteger(1);
     }
 
     /**
      * Use for creating a factory for this message type
      */
     public SimpleMessage() {
+        this(new BufferPool());
+    }
 
+    /**
+     * Use for creating a factory for this message type that leases the buffers of the messages from a pool
+     *
+     * @param pool from which the buffers are leased
+     */
+    public SimpleMessage(BufferPool pool) {
+        this.frame = null;
+        this.leased = null;
+        this.pool = pool;
+        this.references = null;
     }
 
     @Override
     public Message newInstance(MessageType type, int senderID, String pass, int threadID, String threadName, String contents) {
+        return newInstance(type, senderID, pass, threadID, threadName, contents, System.currentTimeMillis());
+    }
+
+    @Override
+    public Message newInstance(MessageType type, int senderID, String pass, int threadID, String threadName, String contents, long date) {
+        return newInstance(type, senderID, pass, threadID, threadName, contents, date, 0);
+    }
+
+    @Override
+    public Message newInstance(MessageType type, int senderID, String pass, int threadID, String threadName, String contents, long date, long messageID) {
         // get the correct length of the body(thread name and password could be part of the body)
-        int messSize = contents.length();
+        byte[] contentBytes = contents.getBytes();
+        int messSize = contentBytes.length;
         switch (type) {
             case NEW_THREAD:
                 messSize += THREAD_NAME_SIZE;
@@ -79,29 +137,30 @@ public class SimpleMessage implements Message, MessageFactory {
         }
 
         // fill the the head
-        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
-        header.put(translate(type))
+        ByteBuffer frame = pool.lease(HEADER_SIZE + messSize);
+        frame.put(translate(type))
                 .putInt(messSize)
-                .put((byte) senderID)
+                .putInt(senderID)
                 .putShort((short) threadID)
-                .putLong(System.currentTimeMillis());
+                .putLong(date)
+                .putLong(messageID);
 
 
         // fill in body
-        ByteBuffer body = ByteBuffer.allocate(messSize);
         switch (type) {
             case NEW_THREAD:
                 threadName = padString(threadName, THREAD_NAME_SIZE);
-                body.put(threadName.getBytes());
+                frame.put(threadName.getBytes());
                 break;
             case REGISTER:
             case CONNECT:
                 pass = padString(pass, PASSWORD_SIZE);
-                body.put(pass.getBytes());
+                frame.put(pass.getBytes());
         }
-        body.put(contents.getBytes());
+        frame.put(contentBytes);
+        frame.flip();
 
-        return new SimpleMessage(header, body);
+        return new SimpleMessage(frame, pool);
     }
 
 
@@ -121,36 +180,83 @@ public class SimpleMessage implements Message, MessageFactory {
         }
 
         //now for the rest of the message (the length indicates how big the body is)
-        ByteBuffer body = ByteBuffer.allocate(header.getInt(messageLen));
-        if (sender.read(body) < 0) {
+        ByteBuffer frame = pool.lease(HEADER_SIZE + header.getInt(messageLen));
+        header.flip();
+        frame.put(header);
+        if (sender.read(frame) < 0) {
+            pool.release(frame);
             throw new IOException("SimpleMessage body not received");
         }
+        frame.flip();
 
-        return new SimpleMessage(header, body);
+        return new SimpleMessage(frame, pool);
+    }
+
+    @Override
+    public MessageDecoder newDecoder() {
+        return new Decoder(pool);
     }
 
     /**
      * Sends the message to a receiving socket.
+     * If the socket of a non-blocking channel is full, a selector of its own waits until it can take more
      *
      * @param receiver the {@link SocketChannel} that is going to receive the message
      * @throws IOException if something occurs while sending
      */
     @Override
     public void sendTo(SocketChannel receiver) throws IOException {
-        header.flip();
-        body.flip();
+        ByteBuffer view = frame.duplicate();
+
+        //a blocking channel takes everything at once
+        while (view.hasRemaining() && receiver.write(view) > 0) ;
+        if (!view.hasRemaining()) return;
+
+        //the socket is full; wait for it to drain instead of spinning on the non-blocking channel
+        try (Selector selector = Selector.open()) {
+            receiver.register(selector, SelectionKey.OP_WRITE);
+            while (view.hasRemaining()) {
+                selector.select();
+                selector.selectedKeys().clear();
+                receiver.write(view);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer[] toBuffers() {
+        return new ByteBuffer[]{frame.duplicate()};
+    }
 
-        receiver.write(new ByteBuffer[]{header, body});
+    @Override
+    public int length() {
+        return frame.remaining();
+    }
+
+    @Override
+    public Message retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    @Override
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            pool.release(leased);
+        } else if (left < 0) {
+            throw new IllegalStateException("SimpleMessage released more times than it was retained");
+        }
     }
 
     @Override
     public MessageType getType() {
-        return translate(header.get(type));
+        return translate(frame.get(type));
     }
 
     @Override
     public int getSenderID() {
-        return header.get(senderID);
+        return frame.getInt(senderID);
     }
 
     /**
@@ -170,7 +276,7 @@ public class SimpleMessage implements Message, MessageFactory {
 
     @Override
     public int getThreadID() {
-        return header.getShort(threadID);
+        return frame.getShort(threadID);
     }
 
     /**
@@ -190,21 +296,26 @@ public class SimpleMessage implements Message, MessageFactory {
 
     @Override
     public long getDate() {
-        return header.getLong(sendDate);
+        return frame.getLong(sendDate);
+    }
+
+    @Override
+    public long getMessageID() {
+        return frame.getLong(messageID);
     }
 
     /**
-     * Returns a string only if the message is a SEND message; Null otherwise
+     * Returns a string only if the message is a SEND or a HISTORY message; an empty one otherwise
      *
-     * @return a string if the message is of type SEND; null otherwise
+     * @return a string if the message is of type SEND or HISTORY; an empty one otherwise
      */
     @Override
     public String getContents() {
-        if (!(getType() == MessageType.SEND)) {
+        if (!(getType() == MessageType.SEND || getType() == MessageType.HISTORY)) {
             return "";
         }
 
-        return new String(body.array());
+        return stringFrom(0, frame.limit() - HEADER_SIZE);
     }
 
     /**
@@ -227,6 +338,14 @@ public class SimpleMessage implements Message, MessageFactory {
                 return MessageType.DISCONNECT;
             case 5:
                 return MessageType.FAILURE;
+            case 6:
+                return MessageType.PING;
+            case 7:
+                return MessageType.PONG;
+            case 8:
+                return MessageType.HISTORY;
+            case 9:
+                return MessageType.LEAVE;
             default:
                 return MessageType.UNKNOWN;
         }
@@ -243,17 +362,18 @@ public class SimpleMessage implements Message, MessageFactory {
     }
 
     /**
-     * Transforms a slice of the buffer into a string
+     * Transforms a slice of the body into a string
      *
-     * @param position from which the slice starts
+     * @param position from which the slice starts (relative to the body)
      * @param size     of the slice
      * @return a String representation of the slice
      */
     private String stringFrom(int position, int size) {
-        body.position(position);
+        ByteBuffer view = frame.duplicate();
+        view.position(HEADER_SIZE + position);
 
         byte[] strInBytes = new byte[size];
-        body.get(strInBytes);
+        view.get(strInBytes);
 
         return new String(strInBytes);
     }
@@ -272,4 +392,118 @@ public class SimpleMessage implements Message, MessageFactory {
 
         return b.toString();
     }
+
+    /**
+     * Accumulates the bytes received from a connection and cuts them into messages.
+     * The buffer is leased from the pool for a read and only kept afterwards while it holds part of a message,
+     * so an idle connection holds no buffer. It's swapped for a bigger one whenever a message doesn't fit in it
+     */
+    private static class Decoder implements MessageDecoder {
+
+        /**
+         * Size of the buffer when there's no big message being received
+         */
+        private static final int INITIAL_SIZE = 2048;
+
+        /**
+         * Maximum number of reads on each call so that a single fast sender can't hold the thread forever
+         */
+        private static final int MAX_READS = 16;
+
+        /**
+         * Bytes that have been received but not yet decoded (always in writing mode); null while there are none
+         */
+        private ByteBuffer buffer;
+
+        /**
+         * Pool that the frames of the decoded messages are leased from
+         */
+        private final BufferPool pool;
+
+        /**
+         * Creates a new decoder
+         *
+         * @param pool that the frames of the decoded messages are leased from
+         */
+        Decoder(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public List<Message> readFrom(ReadableByteChannel sender) throws IOException {
+            List<Message> messages = new ArrayList<>();
+            if (buffer == null) {
+                buffer = pool.lease(INITIAL_SIZE);
+            }
+
+            try {
+                for (int i = 0; i < MAX_READS; i++) {
+                    int read = sender.read(buffer);
+                    if (read < 0) {
+                        //let the messages sent before the closing be handled first
+                        //the next read is going to find the end of the stream again
+                        if (messages.isEmpty())
+                            throw new IOException("The connection was closed by the sender");
+                        break;
+                    }
+
+                    //a read that didn't fill the buffer means nothing more is available right now
+                    boolean filled = !buffer.hasRemaining();
+                    decode(messages);
+
+                    if (!filled) break;
+                }
+            } finally {
+                //nothing is left of an incomplete message, so the buffer goes back until the next read
+                if (buffer.position() == 0) {
+                    pool.release(buffer);
+                    buffer = null;
+                }
+            }
+            return messages;
+        }
+
+        /**
+         * Cuts every complete message out of the buffer and leaves the incomplete one at its beginning
+         *
+         * @param messages where the complete messages are added
+         * @throws IOException if a message has an invalid length
+         */
+        private void decode(List<Message> messages) throws IOException {
+            buffer.flip();
+
+            int needed = HEADER_SIZE;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt(start + messageLen);
+                if (length < 0 || length > MAX_BODY_SIZE)
+                    throw new IOException("SimpleMessage with a body of " + length + " bytes received");
+
+                needed = HEADER_SIZE + length;
+                if (buffer.remaining() < needed) break;
+
+                //copy the message out since the buffer is going to be reused
+                ByteBuffer received = buffer.duplicate();
+                received.limit(start + needed);
+                ByteBuffer frame = pool.lease(needed);
+                frame.put(received);
+                frame.flip();
+
+                buffer.position(start + needed);
+                messages.add(new SimpleMessage(frame, pool));
+                needed = HEADER_SIZE;
+            }
+
+            buffer.compact();
+            if (needed > buffer.capacity()) {
+                //make room for the message that is being received
+                ByteBuffer bigger = pool.lease(needed);
+                bigger.clear();
+                buffer.flip();
+                bigger.put(buffer);
+                pool.release(buffer);
+                buffer = bigger;
+            }
+        }
+    }
 }